@@ -6,6 +6,7 @@ package dex;
 
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -13,6 +14,8 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.jdom.DocType;
 import org.jdom.Document;
@@ -62,6 +65,27 @@ public class Dex {
 	Document doc = new Document(root,dt); 
 	String version = "0.0";
 	private String dexFile="";
+
+	/*
+	 * A long-lived process (the DexDaemon) keeps file hashes and parsed DEX
+	 * documents between runs, keyed by canonical path, size and modification
+	 * time. Each run gets its own copy of a cached document.
+	 */
+	private static boolean caching = false;
+	private static final int MAX_CACHED_DIGESTS = 4096;
+	private static final int MAX_CACHED_DOCUMENTS = 16;
+	private static final Map<String, String> digests = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+			return size() > MAX_CACHED_DIGESTS;
+		}
+	};
+	private static final Map<String, Document> documents = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+			return size() > MAX_CACHED_DOCUMENTS;
+		}
+	};
 	/**
 	 * 
 	 *
@@ -77,6 +101,17 @@ public class Dex {
 	public Dex(String filename) throws DexVersionException, IOException, JDOMException {
 		setDexName(filename);
 		Out.debug ("Loading DEX file: "+filename);
+		String key = caching ? cacheKey(filename) : null;
+		Document cached = null;
+		if (key != null) {
+			synchronized (documents) {
+				cached = documents.get(key);
+			}
+		}
+		if (cached != null) {
+			setDocument((Document)cached.clone());
+			return;
+		}
 		SAXBuilder a = new SAXBuilder();
 		try {
 			doc = a.build(filename);
@@ -87,6 +122,41 @@ public class Dex {
 			System.err.println("JDOME exception: "+ e.getMessage());
 			throw e;
 		}
+		setDocument(doc);
+		if (key != null) {
+			synchronized (documents) {
+				documents.put(key, (Document)doc.clone());
+			}
+		}
+	}
+
+	static void setCaching(boolean on) {
+		caching = on;
+		if (!on) {
+			synchronized (digests) {
+				digests.clear();
+			}
+			synchronized (documents) {
+				documents.clear();
+			}
+		}
+	}
+
+	private static String cacheKey(String filename) throws IOException {
+		File f = new File(filename);
+		return f.getCanonicalPath() + "|" + f.length() + "|" + f.lastModified();
+	}
+
+	/**
+	 * Wrap an already built document, e.g., one loaded by a DexScope.
+	 */
+	Dex(Document document, String filename) throws DexVersionException {
+		setDexName(filename);
+		setDocument(document);
+	}
+
+	private void setDocument(Document document) throws DexVersionException {
+		doc = document;
 		root  = doc.getRootElement();
 		dt = doc.getDocType();
 		if (root.getAttributeValue("version").compareTo(version)!=0){
@@ -131,7 +201,7 @@ public class Dex {
 	 * @param bytes 
 	 * @return 
 	 **/
-	private static String hexEncode(byte[] bytes) {
+	public static String hexEncode(byte[] bytes) {
 		StringBuffer s = new StringBuffer(bytes.length * 2);
 		for(int i = 0; i < bytes.length; i++) {
 			byte b = bytes[i];
@@ -144,10 +214,33 @@ public class Dex {
 	
 	
 	public static String computeMD5(String filename) throws NoSuchAlgorithmException, IOException{
+		if (caching) {
+			String key = cacheKey(filename);
+			String md5;
+			synchronized (digests) {
+				md5 = digests.get(key);
+			}
+			if (md5 == null) {
+				md5 = digestFile(filename);
+				synchronized (digests) {
+					digests.put(key, md5);
+				}
+			}
+			return md5;
+		}
+		return digestFile(filename);
+	}
+
+	private static String digestFile(String filename) throws NoSuchAlgorithmException, IOException {
 		MessageDigest md = MessageDigest.getInstance("MD5");
 		DigestInputStream in = new DigestInputStream(new FileInputStream(filename), md);
 		byte[] buffer = new byte[8192];
-		while (in.read(buffer) != -1);
+		try {
+			while (in.read(buffer) != -1);
+		} finally {
+			// a daemon runs many of these
+			in.close();
+		}
 		byte[] raw = md.digest();
 		return hexEncode(raw);
 	}
@@ -155,30 +248,48 @@ public class Dex {
 	public static String computeMD5(String filename, int start, int len) throws NoSuchAlgorithmException, IOException {
 		MessageDigest md = MessageDigest.getInstance("MD5");
 		DigestInputStream in = new DigestInputStream(new FileInputStream(filename), md);
-		in.skip(start);
+		try {
+			in.skip(start);
 		
-		int totalBytesRead = 0;
-		byte[] buf = new byte[1024];
-		while(totalBytesRead < len) {
-			int bytesRead;
-			assert (totalBytesRead < len);
-			if ((len - totalBytesRead) > buf.length) {
-				bytesRead = in.read(buf);
-			}
-			else {
-				bytesRead = in.read(buf, 0, len-totalBytesRead);
-			}
+			int totalBytesRead = 0;
+			byte[] buf = new byte[1024];
+			while(totalBytesRead < len) {
+				int bytesRead;
+				assert (totalBytesRead < len);
+				if ((len - totalBytesRead) > buf.length) {
+					bytesRead = in.read(buf);
+				}
+				else {
+					bytesRead = in.read(buf, 0, len-totalBytesRead);
+				}
 
-			if (bytesRead == -1) {
-				throw new IOException();
-			}
-			totalBytesRead += bytesRead;
-		}		
+				if (bytesRead == -1) {
+					throw new IOException();
+				}
+				totalBytesRead += bytesRead;
+			}		
+		} finally {
+			in.close();
+		}
 		byte[] raw = md.digest();
 		return hexEncode(raw);		
 	}
 	
 
+	/**
+	 * The directory where DEX keeps caches that outlive one run (tool
+	 * versions, tool output). Set with the dex.cache.dir system property;
+	 * defaults to ~/.dex.
+	 * @return
+	 */
+	public static File getCacheDirectory() {
+		String dir = System.getProperty("dex.cache.dir");
+		if (dir == null) {
+			dir = System.getProperty("user.home") + File.separator + ".dex";
+		}
+		return new File(dir);
+	}
+
 	/**
 	 * Print the XML tree to stdout.
 	 * @param bwstream 
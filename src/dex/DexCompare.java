@@ -1,7 +1,10 @@
 package dex;
 
+import jargs.gnu.CmdLineParser;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -10,6 +13,7 @@ import java.util.Set;
 
 import ntfs.MasterFileTable;
 
+import org.jdom.Attribute;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 
@@ -24,70 +28,131 @@ class UnhandledElementComparison extends Exception {
 }
 
 public class DexCompare {
+	public static final int EXIT_EQUIVALENT = 0;
+	public static final int EXIT_DIFFERENT = 2;
 
 	private static void usage (String err) {
 		if (err!=null) Out.err("\nERROR: "+err);
 
-		Out.err("\nUsage:\njava dex.DexCompare DEXFILE1 DEXFILE2");
+		Out.err("\nUsage:\njava dex.DexCompare [OPTIONS] DEXFILE1 DEXFILE2");
 		Out.err("Compare two dex files, and write results to stdout.");
+		Out.err("\tOPTIONS:");
+		Out.err("\t\t-h, --help:       display this help file");
+		Out.err("\t\t-s, --summary:    only count each kind of difference per element type;");
+		Out.err("\t\t                  exit with " + EXIT_DIFFERENT + " if any difference was found");
+		Out.err("\t\t-f, --fail-fast:  stop at the first difference and exit with " + EXIT_DIFFERENT);
+		Out.err("\t\t--ignore-creation-date: skip CreationDate, which never matches between two");
+		Out.err("\t\t                  runs of the same pipeline");
+		Out.err("\t\t--scope XPATH:    only compare the elements selected by XPATH; may be repeated");
+		Out.err("\t\t--parent-ptr PTR: only compare the top-level elements whose ParentPtr is PTR;");
+		Out.err("\t\t                  may be repeated. With either option, only the selected");
+		Out.err("\t\t                  subtrees are loaded from the DEX files.");
 		Out.err("\nauthors: Brian Neil Levine, Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
 	/*
-	 * Return a mapping from strings to top-level elements in the dex. The key
+	 * Return a mapping from strings to elements in the dex. The key
 	 * (string) will be equal between two Dexes iff the element in question is
 	 * similar enough to be comparable. Elements are comparable if they could
 	 * reasonably refer to the same forensic data, e.g., disk images are
 	 * comparable iff they have the same MD5.
 	 */
-	private static Map<String, Element> labelComparableIDs(Dex dex) throws UnhandledElementComparison, JDOMException {
+	private static Map<String, Element> labelComparableIDs(List<Element> elements) throws UnhandledElementComparison, JDOMException {
 		Map<String, Element> map = new LinkedHashMap<String, Element>();
 		
-		for (Element e : (List<Element>)dex.getRoot().getChildren()) {
-			String elementName = e.getName();
-			if (elementName.equals("CreationDate")) {
-				map.put(elementName, e);
-			}
-			else if (elementName.equals("DiskImage")) {
-				map.put(DiskImageEntry.getComparableID(e), e);
-			}
-			else if (elementName.equals("PartitionTable")) {
-				map.put(PartitionTableEntry.getComparableID(e), e);
-			}
-			else if (elementName.equals("VolumeFile")) {
-				map.put(VolumeFileEntry.getComparableID(e), e);
-			}
-			else if (elementName.equals("MasterFileTable")) {
-				map.put(MasterFileTable.getComparableID(e), e);
-			}
-			else if (elementName.equals("File")) {
-				map.put(FileEntry.getComparableID(e), e);
-			}
-			else if (elementName.equals("Exif")) {
-				map.put(ExifEntry.getComparableID(e), e);
+		for (Element e : elements) {
+			if (isTopLevel(e)) {
+				map.put(getComparableID(e), e);
 			}
 			else {
-				throw new UnhandledElementComparison();
+				map.put(getNestedComparableID(e), e);
 			}
 		}
 		return map;
 	}
-	
-	private static Differences compare(Dex thisDex, Dex otherDex) throws UnhandledElementComparison, JDOMException {
+
+	private static boolean isTopLevel(Element e) {
+		return e.getParentElement() != null && e.getParentElement().getParentElement() == null;
+	}
+
+	private static String getComparableID(Element e) throws UnhandledElementComparison, JDOMException {
+		String elementName = e.getName();
+		if (elementName.equals("CreationDate")) {
+			return elementName;
+		}
+		else if (elementName.equals("DiskImage")) {
+			return DiskImageEntry.getComparableID(e);
+		}
+		else if (elementName.equals("PartitionTable")) {
+			return PartitionTableEntry.getComparableID(e);
+		}
+		else if (elementName.equals("VolumeFile")) {
+			return VolumeFileEntry.getComparableID(e);
+		}
+		else if (elementName.equals("MasterFileTable")) {
+			return MasterFileTable.getComparableID(e);
+		}
+		else if (elementName.equals("File")) {
+			return FileEntry.getComparableID(e);
+		}
+		else if (elementName.equals("Exif")) {
+			return ExifEntry.getComparableID(e);
+		}
+		else {
+			throw new UnhandledElementComparison();
+		}
+	}
+
+	/*
+	 * Elements below the top level (selected by a scope) are keyed on the
+	 * comparable ID of their top-level ancestor, their path below it, and
+	 * their attributes (or, lacking any, their position among same-named
+	 * siblings).
+	 */
+	private static String getNestedComparableID(Element e) throws UnhandledElementComparison, JDOMException {
+		Element topLevel = e;
+		String path = "";
+		while (!isTopLevel(topLevel)) {
+			StringBuilder step = new StringBuilder("/" + topLevel.getName());
+			for (Object o : topLevel.getAttributes()) {
+				Attribute a = (Attribute) o;
+				step.append("[@").append(a.getName()).append("=\"").append(a.getValue()).append("\"]");
+			}
+			if (topLevel.getAttributes().isEmpty()) {
+				// position among same-named siblings
+				List<?> siblings = topLevel.getParentElement().getChildren(topLevel.getName());
+				step.append("[").append(siblings.indexOf(topLevel) + 1).append("]");
+			}
+			path = step + path;
+			topLevel = topLevel.getParentElement();
+		}
+		return getComparableID(topLevel) + path;
+	}
+
+	private static Differences compare(Dex thisDex, Dex otherDex, Set<String> ignorableElements, Differences diffs) throws UnhandledElementComparison, JDOMException {
+		return compare(children(thisDex.getRoot()), children(otherDex.getRoot()), ignorableElements, diffs);
+	}
+
+	private static List<Element> children(Element parent) {
+		List<Element> children = new ArrayList<Element>();
+		for (Object o : parent.getChildren()) {
+			children.add((Element) o);
+		}
+		return children;
+	}
+
+	private static Differences compare(List<Element> thisElements, List<Element> otherElements, Set<String> ignorableElements, Differences diffs) throws UnhandledElementComparison, JDOMException {
 		
 		// For now, "importance" (ie is something different enough to warrant
 		// reporting) is hardcoded in this and the other compare()
 		// functions. Eventually, this behavior will be determined by markup
 		// in the XML.
 		
-		Differences diffs = new Differences();
-		
-		Set<String> ignorableElements = new LinkedHashSet<String>();
 		
-		Map<String, Element> thisUniqueIDMap = labelComparableIDs(thisDex);
-		Map<String, Element> otherUniqueIDMap = labelComparableIDs(otherDex);
+		Map<String, Element> thisUniqueIDMap = labelComparableIDs(thisElements);
+		Map<String, Element> otherUniqueIDMap = labelComparableIDs(otherElements);
 		
 		// find the elements only in this, only in other, and common to both
 		Set<String> thisUniqueIDs = thisUniqueIDMap.keySet();
@@ -124,7 +189,16 @@ public class DexCompare {
 			}
 
 			// w00t old school dynamic dispatch
-			if (elementName.equals("CreationDate")) {
+			if (!isTopLevel(thisElement)) {
+				// a scoped subtree with no entry-specific comparison
+				if (Differences.identical(thisElement, otherElement)) {
+					diffs.addEquivalent(thisElement, otherElement);
+				}
+				else {
+					diffs.addDifferent(elementName + " : content difference", thisElement, otherElement);
+				}
+			}
+			else if (elementName.equals("CreationDate")) {
 				if (thisElement.getTextTrim().equals(otherElement.getTextTrim())) {
 					diffs.addEquivalent(thisElement, otherElement);
 				}
@@ -154,7 +228,7 @@ public class DexCompare {
 				throw new UnhandledElementComparison();
 			}
 		}
-		return null;
+		return diffs;
 		
 	}
 	
@@ -166,6 +240,46 @@ public class DexCompare {
 	 * @throws UnhandledElementComparison 
 	 */
 	public static void main(String[] args) throws JDOMException, IOException, DexVersionException, UnhandledElementComparison {
+		CmdLineParser parser = new CmdLineParser();
+		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
+		CmdLineParser.Option summary = parser.addBooleanOption('s', "summary");
+		CmdLineParser.Option failFast = parser.addBooleanOption('f', "fail-fast");
+		CmdLineParser.Option scopeXPath = parser.addStringOption("scope");
+		CmdLineParser.Option scopeParentPtr = parser.addStringOption("parent-ptr");
+		CmdLineParser.Option ignoreCreationDate = parser.addBooleanOption("ignore-creation-date");
+
+		try {
+			parser.parse(args);
+		}
+		catch (CmdLineParser.OptionException e) {
+			usage(e.getMessage());
+		}
+		Boolean helpRequested = (Boolean)parser.getOptionValue(help, Boolean.FALSE);
+		if (helpRequested) {
+			usage(null);
+		}
+		int mode = Differences.VERBOSE;
+		if ((Boolean)parser.getOptionValue(failFast, Boolean.FALSE)) {
+			mode = Differences.FAIL_FAST;
+		}
+		else if ((Boolean)parser.getOptionValue(summary, Boolean.FALSE)) {
+			mode = Differences.SUMMARY;
+		}
+
+		Set<String> ignorableElements = new LinkedHashSet<String>();
+		if ((Boolean)parser.getOptionValue(ignoreCreationDate, Boolean.FALSE)) {
+			ignorableElements.add("CreationDate");
+		}
+
+		DexScope scope = new DexScope();
+		for (Object o : parser.getOptionValues(scopeXPath)) {
+			scope.addXPath((String)o);
+		}
+		for (Object o : parser.getOptionValues(scopeParentPtr)) {
+			scope.addParentPtr((String)o);
+		}
+
+		args = parser.getRemainingArgs();
 		if (args.length != 2) {
 			usage("Exactly two command line arguments required.");
 		}
@@ -181,11 +295,36 @@ public class DexCompare {
 		}
 
 		
-		Dex evidence = new Dex(dexFilename);
-		Dex otherEvidence = new Dex(otherDexFilename);
-		// Currently all output is due to side effects within Differences. This
-		// plan is not ideal, but suffices for now.
-		Differences diffs = compare(evidence, otherEvidence);
+		Dex evidence = null;
+		Dex otherEvidence = null;
+		if (scope.isEmpty()) {
+			evidence = new Dex(dexFilename);
+			otherEvidence = new Dex(otherDexFilename);
+		}
+		else {
+			evidence = scope.load(dexFilename);
+			otherEvidence = scope.load(otherDexFilename);
+		}
+		// In VERBOSE mode all output is due to side effects within
+		// Differences. This plan is not ideal, but suffices for now.
+		Differences diffs = new Differences(mode);
+		try {
+			if (scope.isEmpty()) {
+				compare(evidence, otherEvidence, ignorableElements, diffs);
+			}
+			else {
+				compare(scope.select(evidence), scope.select(otherEvidence), ignorableElements, diffs);
+			}
+		}
+		catch (FirstDifferenceException e) {
+			Out.out("first difference: " + e.getMessage());
+			Out.exit(EXIT_DIFFERENT);
+		}
+		if (mode == Differences.VERBOSE) {
+			return;
+		}
+		diffs.printSummary(System.out);
+		Out.exit(diffs.getDifferenceCount() == 0 ? EXIT_EQUIVALENT : EXIT_DIFFERENT);
 	}
 
 }
@@ -0,0 +1,348 @@
+package dex;
+
+import jargs.gnu.CmdLineParser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A resident JVM that runs the DEX wrappers on behalf of the bin/dexclient
+ * script, so that a pipeline calling a wrapper thousands of times pays for
+ * JVM startup, class loading and JIT warm-up once, and shares the tool
+ * version, file hash and parsed DEX caches between calls.
+ *
+ * The daemon listens on the loopback interface only. On startup it writes
+ * its port and a random token to daemon.properties in the DEX cache
+ * directory, readable only by its owner; a client must present the token.
+ * Each connection carries one command line as NUL-terminated UTF-8 fields:
+ * "DEX" and the protocol number, the token, the client's working directory,
+ * the named pipes to send stdout and stderr to, a main class (one of
+ * MAIN_CLASSES), the number of arguments and the arguments. The daemon
+ * answers with a line: "exit" and the exit status once the wrapper is done
+ * and the pipes are closed, or "declined". It declines requests from any
+ * other working directory, since relative file names would resolve
+ * differently, and the client then runs the wrapper in a JVM of its own.
+ *
+ * While a request runs, System.out and System.err on its thread (and any
+ * threads it starts) go to the client's pipes, and Out.exit ends the
+ * request with its status rather than ending the daemon.
+ */
+public class DexDaemon {
+	static final int PROTOCOL = 2;
+
+	/** Longest request field accepted, in bytes. */
+	private static final int MAX_FIELD = 64 * 1024;
+
+	static final String INFO_FILENAME = "daemon.properties";
+
+	/** The wrappers the daemon will run. */
+	static final List<String> MAIN_CLASSES = Arrays.asList(new String[] {
+			"tsk.Icat", "tsk.Istat", "tsk.Mmls", "tsk.Mmcat", "tsk.KraininStat",
+			"fdisk.Fdisk", "exif.Exif", "exif.ExifTool", "exif.Jhead",
+			"dex.DexCompare", "dex.XmlDiff", "dex.StreamingXmlDiff" });
+
+	/*
+	 * These wrappers keep parse state in static fields, so two runs of the
+	 * same one must not overlap.
+	 */
+	private static final Map<String, Object> SERIALIZED = new HashMap<String, Object>();
+	static {
+		for (String c : new String[] { "tsk.Mmls", "tsk.KraininStat", "fdisk.Fdisk" }) {
+			SERIALIZED.put(c, new Object());
+		}
+	}
+
+	private static final InheritableThreadLocal<OutputStream> requestStdout = new InheritableThreadLocal<OutputStream>();
+	private static final InheritableThreadLocal<OutputStream> requestStderr = new InheritableThreadLocal<OutputStream>();
+
+	private static String token;
+
+	private static void usage (String err) {
+		if (err!=null) Out.err("\nERROR: "+err);
+
+		Out.err("\nUsage:\njava dex.DexDaemon [OPTIONS]");
+		Out.err("Run DEX wrappers for bin/dexclient in this JVM until killed.");
+		Out.err("\tOPTIONS:");
+		Out.err("\t\t-h, --help:       display this help file");
+		Out.err("\t\t-p, --port PORT:  listen on PORT (default: any free port)");
+		Out.err("\nThe port and access token are written to " + getInfoFile() + ".");
+
+		System.exit(1);
+	}
+
+	static boolean isAllowed(String className) {
+		return MAIN_CLASSES.contains(className);
+	}
+
+	static File getInfoFile() {
+		return new File(Dex.getCacheDirectory(), INFO_FILENAME);
+	}
+
+	public static void main(String[] args) throws IOException {
+		CmdLineParser parser = new CmdLineParser();
+		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
+		CmdLineParser.Option portOption = parser.addIntegerOption('p', "port");
+
+		try {
+			parser.parse(args);
+		}
+		catch (CmdLineParser.OptionException e) {
+			usage(e.getMessage());
+		}
+		if ((Boolean)parser.getOptionValue(help, Boolean.FALSE)) {
+			usage(null);
+		}
+		if (parser.getRemainingArgs().length != 0) {
+			usage("No arguments expected.");
+		}
+		int port = (Integer)parser.getOptionValue(portOption, Integer.valueOf(0));
+
+		System.setOut(new PrintStream(new RequestOutputStream(requestStdout, System.out), true));
+		System.setErr(new PrintStream(new RequestOutputStream(requestStderr, System.err), true));
+		Dex.setCaching(true);
+
+		final ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+		byte[] secret = new byte[16];
+		new SecureRandom().nextBytes(secret);
+		token = Dex.hexEncode(secret);
+		writeInfoFile(server.getLocalPort());
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				getInfoFile().delete();
+			}
+		});
+		Out.err("DEX daemon listening on 127.0.0.1:" + server.getLocalPort() + " in " + System.getProperty("user.dir"));
+
+		while (true) {
+			final Socket socket = server.accept();
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					try {
+						serve(socket);
+					} catch (IOException e) {
+						Out.debug("DEX daemon: " + e.getMessage());
+					} finally {
+						try {
+							socket.close();
+						} catch (IOException e) {
+							// already gone
+						}
+					}
+				}
+			}, "dex request " + socket.getPort());
+			t.start();
+		}
+	}
+
+	private static void writeInfoFile(int port) throws IOException {
+		File file = getInfoFile();
+		file.getParentFile().mkdirs();
+		file.delete();
+		file.createNewFile();
+		// owner only, before the token is written
+		file.setReadable(false, false);
+		file.setWritable(false, false);
+		file.setReadable(true, true);
+		file.setWritable(true, true);
+		Properties p = new Properties();
+		p.setProperty("port", Integer.toString(port));
+		p.setProperty("token", token);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			p.store(out, "DEX daemon");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void serve(Socket socket) throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+		if (!("DEX" + PROTOCOL).equals(readField(in)) || !token.equals(readField(in))) {
+			decline(out);
+			return;
+		}
+		String cwd = readField(in);
+		String stdoutPipe = readField(in);
+		String stderrPipe = readField(in);
+		String className = readField(in);
+		int argc;
+		try {
+			argc = Integer.parseInt(readField(in));
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad argument count");
+		}
+		if (argc < 0 || argc > MAX_FIELD) {
+			throw new IOException("Bad argument count " + argc);
+		}
+		String[] args = new String[argc];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = readField(in);
+		}
+
+		if (!sameDirectory(cwd, System.getProperty("user.dir")) || !isAllowed(className)
+				|| !new File(stdoutPipe).isAbsolute() || !new File(stderrPipe).isAbsolute()) {
+			decline(out);
+			return;
+		}
+
+		long start = System.nanoTime();
+		int status;
+		OutputStream stdout = new BufferedOutputStream(new FileOutputStream(stdoutPipe), ToolRunner.BUFFER_SIZE);
+		try {
+			OutputStream stderr = new FileOutputStream(stderrPipe);
+			try {
+				Object lock = SERIALIZED.get(className);
+				if (lock == null) {
+					status = run(className, args, stdout, stderr);
+				}
+				else {
+					synchronized (lock) {
+						status = run(className, args, stdout, stderr);
+					}
+				}
+			} finally {
+				stderr.close();
+			}
+		} finally {
+			stdout.close();
+		}
+		out.write("exit " + status + "\n");
+		out.flush();
+		Out.debug("DEX daemon: " + className + ": exit " + status + ", " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private static boolean sameDirectory(String a, String b) throws IOException {
+		return new File(a).getCanonicalPath().equals(new File(b).getCanonicalPath());
+	}
+
+	private static void decline(Writer out) throws IOException {
+		out.write("declined\n");
+		out.flush();
+	}
+
+	/*
+	 * Read a NUL-terminated UTF-8 field of the request.
+	 */
+	private static String readField(InputStream in) throws IOException {
+		ByteArrayOutputStream field = new ByteArrayOutputStream();
+		for (int b; (b = in.read()) != 0;) {
+			if (b == -1) {
+				throw new EOFException("Request ended early");
+			}
+			if (field.size() == MAX_FIELD) {
+				throw new IOException("Request field too long");
+			}
+			field.write(b);
+		}
+		return field.toString("UTF-8");
+	}
+
+	/*
+	 * Run a wrapper's main method with this thread's stdout and stderr sent
+	 * to the client, and return its exit status.
+	 */
+	private static int run(String className, String[] args, OutputStream stdout, OutputStream stderr) {
+		requestStdout.set(stdout);
+		requestStderr.set(stderr);
+		int status = 0;
+		try {
+			Class.forName(className).getMethod("main", String[].class).invoke(null, (Object)args);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof ExitException) {
+				status = ((ExitException)e.getCause()).status;
+			}
+			else {
+				// what the JVM does with an uncaught exception
+				e.getCause().printStackTrace();
+				status = 1;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			status = 1;
+		} finally {
+			System.out.flush();
+			System.err.flush();
+			try {
+				stdout.flush();
+			} catch (IOException e) {
+				// the client went away
+			}
+			requestStdout.remove();
+			requestStderr.remove();
+		}
+		return status;
+	}
+
+	/**
+	 * End a wrapper run: the request, in the daemon, or else the JVM.
+	 */
+	static void exit(int status) {
+		if (requestStdout.get() != null) {
+			throw new ExitException(status);
+		}
+		System.exit(status);
+	}
+
+	/** Thrown by exit() to end a request. */
+	static class ExitException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		ExitException(int status) {
+			super("exit " + status);
+			this.status = status;
+		}
+	}
+
+	/*
+	 * Installed as System.out or System.err: writes to the current request's
+	 * stream, or to the daemon's own outside of a request.
+	 */
+	private static class RequestOutputStream extends OutputStream {
+		private final ThreadLocal<OutputStream> target;
+		private final OutputStream daemon;
+
+		RequestOutputStream(ThreadLocal<OutputStream> target, OutputStream daemon) {
+			this.target = target;
+			this.daemon = daemon;
+		}
+
+		private OutputStream out() {
+			OutputStream o = target.get();
+			return (o == null) ? daemon : o;
+		}
+
+		public void write(int b) throws IOException {
+			out().write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			out().write(b, off, len);
+		}
+
+		public void flush() throws IOException {
+			out().flush();
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package dex;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom.DocType;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.xpath.XPath;
+
+/**
+ * Restricts a DEX comparison to a set of subtrees, named either by XPath
+ * expressions or by the ParentPtr of the top-level elements of interest.
+ *
+ * Rather than building the whole document, load() streams the DEX file and
+ * only builds the top-level elements that a scope could select, plus the
+ * small elements that ParentPtrs are resolved against (DiskImage and
+ * PartitionTable). A top-level element is built if its name matches the
+ * first step of an XPath and so do any attribute tests in that step, such
+ * as [@ParentPtr="..."]; other predicates in the first step, and every
+ * later step, are only applied once it is built. The cost of a scoped
+ * comparison is then proportional to the size of the top-level elements
+ * that pass that first step, which for /DEXroot/MasterFileTable without
+ * attribute tests means every MasterFileTable in the DEX.
+ */
+public class DexScope {
+	/** Top-level elements that other elements' ParentPtrs resolve against. */
+	private static final String[] ANCHORS = {"DiskImage", "PartitionTable"};
+	private static final Pattern ATTRIBUTE_TEST = Pattern.compile("\\s*@([\\w.-]+)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)')\\s*");
+
+	private final List<String> xpaths = new LinkedList<String>();
+	private final List<String> parentPtrs = new LinkedList<String>();
+	private final List<Step> topLevelSteps = new LinkedList<Step>();
+	private boolean loadEverything = false;
+
+	public void addXPath(String xpath) {
+		xpaths.add(xpath);
+		Step step = topLevelStep(xpath);
+		if (step == null) {
+			loadEverything = true;
+		}
+		else {
+			topLevelSteps.add(step);
+		}
+	}
+
+	public void addParentPtr(String parentPtr) {
+		parentPtrs.add(parentPtr);
+	}
+
+	public boolean isEmpty() {
+		return xpaths.isEmpty() && parentPtrs.isEmpty();
+	}
+
+	/*
+	 * The first step below DEXroot of an absolute xpath: an element name and
+	 * the attribute values its predicates require. Other predicates, and
+	 * the attribute tests after them, are left to select(), so they only cost
+	 * building elements it then drops.
+	 * Null if the expression could select anything (wildcards, //, unions,
+	 * functions).
+	 */
+	static Step topLevelStep(String xpath) {
+		String prefix = "/DEXroot/";
+		if (!xpath.startsWith(prefix) || xpath.indexOf('|') != -1) {
+			return null;
+		}
+		int end = prefix.length();
+		while (end < xpath.length() && xpath.charAt(end) != '[' && xpath.charAt(end) != '/') {
+			end++;
+		}
+		String name = xpath.substring(prefix.length(), end);
+		if (name.length() == 0) {
+			return null;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.')) {
+				return null;
+			}
+		}
+		Step step = new Step(name);
+		boolean filtering = true;
+		while (end < xpath.length() && xpath.charAt(end) == '[') {
+			int close = closingBracket(xpath, end);
+			if (close == -1) {
+				return null;
+			}
+			Matcher m = ATTRIBUTE_TEST.matcher(xpath.substring(end + 1, close));
+			if (!m.matches()) {
+				// later tests apply to what this one leaves, e.g. [1][@a='b']
+				filtering = false;
+			}
+			else if (filtering) {
+				step.attributes.put(m.group(1), m.group(2) != null ? m.group(2) : m.group(3));
+			}
+			end = close + 1;
+		}
+		if (end < xpath.length() && xpath.charAt(end) != '/') {
+			return null;
+		}
+		return step;
+	}
+
+	/*
+	 * The index of the ] that closes the [ at open, skipping quoted strings
+	 * and nested predicates; -1 if there is none.
+	 */
+	private static int closingBracket(String xpath, int open) {
+		int depth = 0;
+		char quote = 0;
+		for (int i = open; i < xpath.length(); i++) {
+			char c = xpath.charAt(i);
+			if (quote != 0) {
+				if (c == quote) {
+					quote = 0;
+				}
+			}
+			else if (c == '"' || c == '\'') {
+				quote = c;
+			}
+			else if (c == '[') {
+				depth++;
+			}
+			else if (c == ']' && --depth == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Stream the named DEX file, building only the top-level elements that
+	 * are in scope or needed to resolve ParentPtrs.
+	 */
+	public Dex load(String filename) throws IOException, JDOMException, DexVersionException {
+		Out.debug("Loading DEX file (scoped): " + filename);
+		InputStream in = new FileInputStream(filename);
+		try {
+			XMLInputFactory factory = XMLInputFactory.newInstance();
+			factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+			factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+			XMLStreamReader reader = factory.createXMLStreamReader(in);
+			while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+			}
+			Element root = new Element(reader.getLocalName());
+			copyAttributes(reader, root);
+
+			int kept = 0;
+			int skipped = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT) {
+					break;
+				}
+				if (event != XMLStreamConstants.START_ELEMENT) {
+					continue;
+				}
+				if (wanted(reader)) {
+					root.addContent(build(reader));
+					kept++;
+				}
+				else {
+					skip(reader);
+					skipped++;
+				}
+			}
+			Out.debug("\tkept " + kept + " top-level elements, skipped " + skipped);
+			Dex dex = new Dex(new Document(root, new DocType("DEX_root")), filename);
+			return dex;
+		}
+		catch (XMLStreamException e) {
+			System.err.println("StAX exception: " + e.getMessage());
+			throw new JDOMException(e.getMessage(), e);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private boolean wanted(XMLStreamReader reader) {
+		String name = reader.getLocalName();
+		if (loadEverything) {
+			return true;
+		}
+		for (Step step : topLevelSteps) {
+			if (step.matches(reader)) {
+				return true;
+			}
+		}
+		for (String anchor : ANCHORS) {
+			if (anchor.equals(name)) {
+				return true;
+			}
+		}
+		String parentPtr = reader.getAttributeValue(null, "ParentPtr");
+		return parentPtr != null && parentPtrs.contains(parentPtr);
+	}
+
+	/**
+	 * Return the elements in scope, in document order and without duplicates.
+	 */
+	public List<Element> select(Dex dex) throws JDOMException {
+		Set<Element> selected = new LinkedHashSet<Element>();
+		for (String xpath : xpaths) {
+			for (Object o : XPath.newInstance(xpath).selectNodes(dex.getRoot())) {
+				if (o instanceof Element) {
+					selected.add((Element) o);
+				}
+			}
+		}
+		for (Object o : dex.getRoot().getChildren()) {
+			Element e = (Element) o;
+			String parentPtr = e.getAttributeValue("ParentPtr");
+			if (parentPtr != null && parentPtrs.contains(parentPtr)) {
+				selected.add(e);
+			}
+		}
+		return new LinkedList<Element>(selected);
+	}
+
+	/*
+	 * Build a JDOM element from the subtree under the current START_ELEMENT,
+	 * leaving the reader on its END_ELEMENT.
+	 */
+	private static Element build(XMLStreamReader reader) throws XMLStreamException {
+		Element element = new Element(reader.getLocalName());
+		copyAttributes(reader, element);
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				element.addContent(build(reader));
+			}
+			else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+					|| event == XMLStreamConstants.SPACE) {
+				element.addContent(reader.getText());
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				break;
+			}
+		}
+		return element;
+	}
+
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/*
+	 * An element name and attribute values that a top-level element must
+	 * have to be in scope.
+	 */
+	static class Step {
+		final String name;
+		final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+		Step(String name) {
+			this.name = name;
+		}
+
+		boolean matches(XMLStreamReader reader) {
+			if (!name.equals(reader.getLocalName())) {
+				return false;
+			}
+			for (Map.Entry<String, String> a : attributes.entrySet()) {
+				if (!a.getValue().equals(reader.getAttributeValue(null, a.getKey()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static void copyAttributes(XMLStreamReader reader, Element element) {
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+		}
+	}
+}
@@ -1,20 +1,38 @@
 package dex;
 
+import java.io.PrintStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import org.jdom.Attribute;
 import org.jdom.Element;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 
 /*
- * A utility class to store differences between two dex files, described as elements.  
- * Currently outputs as a side effect the differences / similarities as it records 
- * them, but this behavior should go away in the future.
+ * A utility class to store differences between two dex files, described as elements.
+ * In VERBOSE mode it outputs as a side effect the differences / similarities as it
+ * records them, but this behavior should go away in the future. SUMMARY mode only
+ * counts each category per element name, and FAIL_FAST additionally stops the
+ * comparison at the first difference.
  */
 public class Differences {
+	public static final int VERBOSE = 0;
+	public static final int SUMMARY = 1;
+	public static final int FAIL_FAST = 2;
+
+	public static final String[] CATEGORIES = {"onlyThis", "onlyOther", "identical", "equivalent", "different"};
+	private static final int ONLY_THIS = 0;
+	private static final int ONLY_OTHER = 1;
+	private static final int IDENTICAL = 2;
+	private static final int EQUIVALENT = 3;
+	private static final int DIFFERENT = 4;
+
 	// Working with xpath strings rather than the Elements themselves might be
 	// more general, especially as the DEX format evolves.
 	private Set<Element> onlyThis = new LinkedHashSet<Element>();
@@ -23,8 +41,24 @@ public class Differences {
 	private Set<List<Element>> equivalent = new LinkedHashSet<List<Element>>();
 	private Set<List> different = new LinkedHashSet<List>();
 	private XMLOutputter xmloutputter = new XMLOutputter(Format.getPrettyFormat());
-	
+
+	private final int mode;
+	private final Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+	private int differenceCount = 0;
+
+	public Differences() {
+		this(VERBOSE);
+	}
+
+	public Differences(int mode) {
+		this.mode = mode;
+	}
+
 	public void addOnlyThis(Element e) {
+		count(e, ONLY_THIS);
+		if (mode != VERBOSE) {
+			return;
+		}
 		System.out.println("onlyThis:");
 		System.out.println(xmloutputter.outputString(e));
 		System.out.println();
@@ -32,6 +66,10 @@ public class Differences {
 	}
 
 	public void addOnlyOther(Element e) {
+		count(e, ONLY_OTHER);
+		if (mode != VERBOSE) {
+			return;
+		}
 		System.out.println("onlyOther:");
 		System.out.println(xmloutputter.outputString(e));
 		System.out.println();
@@ -39,10 +77,14 @@ public class Differences {
 	}
 
 	public void addEquivalent(Element e1, Element e2) {
-		if (xmloutputter.outputString(e1).equals(xmloutputter.outputString(e2))) {
+		if (identical(e1, e2)) {
 			addIdentical(e1, e2);
 			return;
 		}
+		count(e1, EQUIVALENT);
+		if (mode != VERBOSE) {
+			return;
+		}
 		System.out.println("equivalent:");
 		System.out.println(xmloutputter.outputString(e1));
 		System.out.println(xmloutputter.outputString(e2));
@@ -54,6 +96,10 @@ public class Differences {
 	}
 
 	private void addIdentical(Element e1, Element e2) {
+		count(e1, IDENTICAL);
+		if (mode != VERBOSE) {
+			return;
+		}
 		System.out.println("identical:");
 		System.out.println(xmloutputter.outputString(e2));
 		System.out.println();
@@ -64,6 +110,10 @@ public class Differences {
 	}
 
 	public void addDifferent(String description, Element thisElement, Element otherElement) {
+		count(thisElement, DIFFERENT);
+		if (mode != VERBOSE) {
+			return;
+		}
 		System.out.println(description);
 		System.out.println("differentThis:");
 		System.out.println(xmloutputter.outputString(thisElement));
@@ -77,4 +127,93 @@ public class Differences {
 		l.add(otherElement);
 		different.add(l);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return the number of onlyThis, onlyOther and different records seen so far
+	 */
+	public int getDifferenceCount() {
+		return differenceCount;
+	}
+
+	/**
+	 * Print the per-element-name count of each category.
+	 * @param stream
+	 */
+	public void printSummary(PrintStream stream) {
+		StringBuilder sb = new StringBuilder(String.format("%-24s", "element"));
+		for (String c : CATEGORIES) {
+			sb.append(String.format(" %10s", c));
+		}
+		stream.println(sb);
+		int[] total = new int[CATEGORIES.length];
+		for (Map.Entry<String, int[]> e : counts.entrySet()) {
+			stream.println(summaryLine(e.getKey(), e.getValue()));
+			for (int i = 0; i < total.length; i++) {
+				total[i] += e.getValue()[i];
+			}
+		}
+		stream.println(summaryLine("TOTAL", total));
+	}
+
+	private static String summaryLine(String name, int[] c) {
+		StringBuilder sb = new StringBuilder(String.format("%-24s", name));
+		for (int i = 0; i < c.length; i++) {
+			sb.append(String.format(" %10d", c[i]));
+		}
+		return sb.toString();
+	}
+
+	private void count(Element e, int category) {
+		int[] c = counts.get(e.getName());
+		if (c == null) {
+			c = new int[CATEGORIES.length];
+			counts.put(e.getName(), c);
+		}
+		c[category]++;
+		if (category == ONLY_THIS || category == ONLY_OTHER || category == DIFFERENT) {
+			differenceCount++;
+			if (mode == FAIL_FAST) {
+				throw new FirstDifferenceException(CATEGORIES[category] + ": " + e.getName());
+			}
+		}
+	}
+
+	/*
+	 * Structural equality, matching what comparing the pretty-printed
+	 * elements used to decide (pretty printing trims text), without
+	 * serializing either element.
+	 */
+	static boolean identical(Element e1, Element e2) {
+		if (!e1.getName().equals(e2.getName()) || !e1.getNamespaceURI().equals(e2.getNamespaceURI())) {
+			return false;
+		}
+		List<?> a1 = e1.getAttributes();
+		List<?> a2 = e2.getAttributes();
+		if (a1.size() != a2.size()) {
+			return false;
+		}
+		for (int i = 0; i < a1.size(); i++) {
+			Attribute attr1 = (Attribute) a1.get(i);
+			Attribute attr2 = (Attribute) a2.get(i);
+			if (!attr1.getName().equals(attr2.getName()) || !attr1.getValue().equals(attr2.getValue())) {
+				return false;
+			}
+		}
+		if (!e1.getTextTrim().equals(e2.getTextTrim())) {
+			return false;
+		}
+		List<?> c1 = e1.getChildren();
+		List<?> c2 = e2.getChildren();
+		if (c1.size() != c2.size()) {
+			return false;
+		}
+		Iterator<?> i1 = c1.iterator();
+		Iterator<?> i2 = c2.iterator();
+		while (i1.hasNext()) {
+			if (!identical((Element) i1.next(), (Element) i2.next())) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -21,6 +21,18 @@ public abstract class Entry {
 		addElement("CommandLine", commandLine);
 	}
 
+	public final void addExitStatus(int status) {
+		addElement("ExitStatus", Integer.toString(status));
+	}
+
+	/**
+	 * Note that the output came from the ReplayCache, under the given key,
+	 * rather than from running the tool.
+	 */
+	public final void addReplayed(String key) {
+		addElement("Replayed", key);
+	}
+
 	public final void addRawOutput(String output) {
 		// disable for now, cuts down on output chatter
 		// addElement("RawOutput", output);
@@ -0,0 +1,12 @@
+package dex;
+
+/*
+ * Thrown in FAIL_FAST mode to unwind the comparison at the first difference.
+ */
+class FirstDifferenceException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	FirstDifferenceException(String description) {
+		super(description);
+	}
+}
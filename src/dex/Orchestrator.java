@@ -0,0 +1,172 @@
+package dex;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.jdom.Element;
+
+/**
+ * Runs many wrapper tasks at once (one per image, partition, inode or
+ * photo) and collects their results in task order.
+ *
+ * Every task gets its own virtual thread where the JVM has them (Java 21
+ * and later), so a task blocked on a child process costs next to nothing;
+ * otherwise tasks share a pool of as many platform threads as the two
+ * limits allow together. How many tasks of each kind run at once
+ * is bounded separately for CPU tasks (parsing, hashing, and tools that
+ * compute) and IO tasks (tools and copies that mostly wait on the disk).
+ * The limits default to the number of processors and to four times that,
+ * or to the dex.cpu.limit and dex.io.limit system properties.
+ *
+ * The DEX tree is not thread-safe, so tasks build their entries under a
+ * scratch root of their own (see createScratchRoot) and merge() moves them
+ * into the DEX afterwards, on the calling thread.
+ */
+public class Orchestrator {
+	public static final int CPU = 0;
+	public static final int IO = 1;
+
+	private final ExecutorService executor;
+	private final int[] limits;
+	private final Semaphore[] permits;
+
+	public Orchestrator() {
+		this(getDefaultLimit(CPU), getDefaultLimit(IO));
+	}
+
+	public Orchestrator(int cpuLimit, int ioLimit) {
+		limits = new int[] { Math.max(1, cpuLimit), Math.max(1, ioLimit) };
+		permits = new Semaphore[] { new Semaphore(limits[CPU]), new Semaphore(limits[IO]) };
+		executor = newExecutor(limits[CPU] + limits[IO]);
+	}
+
+	public static int getDefaultLimit(int kind) {
+		int processors = Runtime.getRuntime().availableProcessors();
+		if (kind == CPU) {
+			return Integer.getInteger("dex.cpu.limit", processors);
+		}
+		return Integer.getInteger("dex.io.limit", 4 * processors);
+	}
+
+	/**
+	 * Start a task, which holds one permit of the given kind while it runs.
+	 */
+	public <T> Future<T> submit(final int kind, final Callable<T> task) {
+		return executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				permits[kind].acquire();
+				try {
+					return task.call();
+				} finally {
+					permits[kind].release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run the tasks and return their results in task order. If a task
+	 * fails, its exception is thrown once the tasks before it are done.
+	 */
+	public <T> List<T> runAll(int kind, List<? extends Callable<T>> tasks) throws Exception {
+		long start = System.nanoTime();
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(submit(kind, task));
+		}
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> f : futures) {
+				results.add(get(f));
+			}
+		} finally {
+			for (Future<T> f : futures) {
+				f.cancel(true);
+			}
+		}
+		Out.debug("Orchestrator: " + tasks.size() + " " + (kind == CPU ? "CPU" : "IO") + " tasks, "
+				+ "at most " + limits[kind] + " at once, in " + (System.nanoTime() - start) / 1000000 + " ms");
+		return results;
+	}
+
+	/**
+	 * Run the tasks on an Orchestrator of their own, with the given limit
+	 * for their kind, and return their results in task order.
+	 */
+	public static <T> List<T> run(int kind, int limit, List<? extends Callable<T>> tasks) throws Exception {
+		Orchestrator orchestrator = (kind == CPU)
+				? new Orchestrator(limit, getDefaultLimit(IO))
+				: new Orchestrator(getDefaultLimit(CPU), limit);
+		try {
+			return orchestrator.runAll(kind, tasks);
+		} finally {
+			orchestrator.shutdown();
+		}
+	}
+
+	public static <T> T get(Future<T> f) throws Exception {
+		try {
+			return f.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * An element for a task to build its entries under, in place of the
+	 * DEX root.
+	 */
+	public static Element createScratchRoot() {
+		return new Element("DEXroot");
+	}
+
+	/**
+	 * Move the entries built under each scratch root into the DEX, in order.
+	 */
+	public static void merge(Dex evidence, List<Element> scratchRoots) {
+		for (Element scratch : scratchRoots) {
+			// a copy, since detaching changes the live list
+			Object[] children = scratch.getChildren().toArray();
+			for (Object o : children) {
+				Element e = (Element)o;
+				e.detach();
+				evidence.getRoot().addContent(e);
+			}
+		}
+	}
+
+	/*
+	 * Executors.newVirtualThreadPerTaskExecutor() where there is one, else a
+	 * fixed pool of daemon threads.
+	 */
+	private static ExecutorService newExecutor(int threads) {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (Exception e) {
+			// before Java 21, or virtual threads not enabled
+		}
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dex-task");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
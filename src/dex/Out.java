@@ -15,5 +15,12 @@ public class Out {
 	static public void out (String s) {
 		System.out.println(s);
 	}
-}
 
+	/**
+	 * End a wrapper with the given exit status, as System.exit would; in a
+	 * DexDaemon request this ends only the request.
+	 */
+	static public void exit (int status) {
+		DexDaemon.exit(status);
+	}
+}
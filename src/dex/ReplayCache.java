@@ -0,0 +1,94 @@
+package dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A store of raw tool output, so that a wrapper run again on the same input
+ * can replay the output through its parser instead of running the tool.
+ *
+ * An output is filed under a hash of the tool's version string, the
+ * binary's resolved path, size and modification time (as in ToolVersions),
+ * the command line with the input file name replaced by a placeholder, and
+ * the MD5 of the input's content. Only the output of runs that exit with
+ * status 0 is kept. Anything in an output that reflects the input's name
+ * or file times rather than its content is replayed as first recorded; the
+ * wrappers' parsers do not use such fields. Outputs live in replay/ under the DEX cache directory;
+ * nothing is ever evicted, so delete the directory to reclaim the space.
+ *
+ * The cache is off unless the dex.replay system property is set to true.
+ * Entries built from replayed output say so with a Replayed element
+ * holding the key, so a DEX never passes off a replay as a fresh run.
+ */
+public class ReplayCache {
+	private static final String DIRECTORY = "replay";
+	private static final String INPUT = "<input>";
+
+	public static boolean isEnabled() {
+		return "true".equals(System.getProperty("dex.replay"));
+	}
+
+	/**
+	 * @return the key for a run of the command on the input, or null if it
+	 * can't be cached (the binary isn't on the PATH)
+	 */
+	public static String getKey(List<String> command, String version, String inputFilename, String inputMD5) {
+		File binary = ToolVersions.resolve(command.get(0));
+		if (binary == null) {
+			return null;
+		}
+		try {
+			StringBuilder sb = new StringBuilder();
+			sb.append(version).append('\0');
+			sb.append(binary.getCanonicalPath()).append('|').append(binary.length()).append('|')
+					.append(binary.lastModified()).append('\0');
+			for (String arg : command) {
+				sb.append(arg.equals(inputFilename) ? INPUT : arg).append('\0');
+			}
+			sb.append(inputMD5);
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			return Dex.hexEncode(md5.digest(sb.toString().getBytes("UTF-8")));
+		} catch (IOException e) {
+			return null;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the stored output for the key, or null if there is none
+	 */
+	public static File get(String key) {
+		File f = getFile(key);
+		return f.isFile() ? f : null;
+	}
+
+	/**
+	 * A new temporary file to collect output in, for commit() to file under
+	 * the key once the run has succeeded.
+	 */
+	public static File createTemporary(String key) throws IOException {
+		File dir = getFile(key).getParentFile();
+		dir.mkdirs();
+		return File.createTempFile(key, ".tmp", dir);
+	}
+
+	public static void commit(File temporary, String key) {
+		File f = getFile(key);
+		if (!temporary.renameTo(f)) {
+			// another run got there first, or the file system won't rename over
+			f.delete();
+			if (!temporary.renameTo(f)) {
+				temporary.delete();
+			}
+		}
+	}
+
+	private static File getFile(String key) {
+		File dir = new File(new File(Dex.getCacheDirectory(), DIRECTORY), key.substring(0, 2));
+		return new File(dir, key);
+	}
+}
@@ -0,0 +1,397 @@
+package dex;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A structural diff of two XML documents that walks both documents in
+ * lockstep with StAX pull parsers, rather than building two DOMs as XMLUnit
+ * does. Memory use is bounded by the document depth and the resync window,
+ * not by the document size, and differences are written as they are found.
+ * Each level keeps at most a window of parked subtrees and of occurrence
+ * counters per side.
+ *
+ * Sibling elements are matched on a key made of the element name, the
+ * identifying attributes listed in KEY_ATTRIBUTES, and the occurrence number
+ * of that name/attribute combination under the parent. When the keys of the
+ * two current siblings disagree, both subtrees are reduced to a digest and
+ * parked in a per-level window until a sibling with the same key shows up on
+ * the other side (or the parent closes, or the window overflows).
+ */
+public class StreamingXmlDiff {
+	/** Attributes that identify an element among its siblings in a DEX. */
+	static final String[] KEY_ATTRIBUTES = {"MD5Sum", "address", "ParentPtr", "UniqueID"};
+
+	/** Default number of unmatched subtrees kept per level and per side. */
+	static final int DEFAULT_WINDOW = 4096;
+
+	private final Side thisSide;
+	private final Side otherSide;
+	private final PrintStream out;
+	private final int window;
+	private int differences = 0;
+
+	public StreamingXmlDiff(InputStream thisXml, InputStream otherXml, PrintStream out) throws XMLStreamException {
+		this(thisXml, otherXml, out, DEFAULT_WINDOW);
+	}
+
+	public StreamingXmlDiff(InputStream thisXml, InputStream otherXml, PrintStream out, int window) throws XMLStreamException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+		this.thisSide = new Side(factory.createXMLStreamReader(thisXml));
+		this.otherSide = new Side(factory.createXMLStreamReader(otherXml));
+		this.out = out;
+		this.window = window;
+	}
+
+	/**
+	 * Run the comparison, writing each difference to the output stream.
+	 * @return the number of differences found
+	 */
+	public int diff() throws XMLStreamException {
+		thisSide.next();
+		otherSide.next();
+		if (!thisSide.atStart() || !otherSide.atStart()) {
+			report("document", "one of the documents has no root element");
+			return differences;
+		}
+		Level root = new Level("");
+		String thisKey = root.keyFor(thisSide, THIS);
+		String otherKey = root.keyFor(otherSide, OTHER);
+		if (!thisKey.equals(otherKey)) {
+			report("/", "root elements differ: " + thisKey + " vs " + otherKey);
+			return differences;
+		}
+		String path = "/" + thisKey;
+		compareAttributes(path);
+		compareContent(path);
+		return differences;
+	}
+
+	/*
+	 * Both sides are positioned on matching START_ELEMENTs; compare their
+	 * content and leave both positioned on their matching END_ELEMENTs.
+	 */
+	private void compareContent(String path) throws XMLStreamException {
+		Level level = new Level(path);
+		thisSide.next();
+		otherSide.next();
+		while (!(thisSide.atEnd() && otherSide.atEnd())) {
+			String thisKey = thisSide.atStart() ? level.keyFor(thisSide, THIS) : null;
+			String otherKey = otherSide.atStart() ? level.keyFor(otherSide, OTHER) : null;
+
+			if (thisKey != null && thisKey.equals(otherKey)) {
+				String childPath = path + "/" + thisKey;
+				compareAttributes(childPath);
+				compareContent(childPath);
+				thisSide.next();
+				otherSide.next();
+				continue;
+			}
+			if (thisKey != null) {
+				level.park(THIS, thisKey, thisSide.skipSubtree());
+				thisSide.next();
+			}
+			if (otherKey != null) {
+				level.park(OTHER, otherKey, otherSide.skipSubtree());
+				otherSide.next();
+			}
+		}
+		if (!thisSide.text().equals(otherSide.text())) {
+			report(path, "text differs: \"" + thisSide.text() + "\" vs \"" + otherSide.text() + "\"");
+		}
+		thisSide.popText();
+		otherSide.popText();
+		level.flush();
+	}
+
+	private void compareAttributes(String path) {
+		Map<String, String> thisAttrs = thisSide.attributes();
+		Map<String, String> otherAttrs = otherSide.attributes();
+		for (Map.Entry<String, String> a : thisAttrs.entrySet()) {
+			String otherValue = otherAttrs.get(a.getKey());
+			if (otherValue == null) {
+				report(path, "attribute @" + a.getKey() + " only in this");
+			}
+			else if (!otherValue.equals(a.getValue())) {
+				report(path, "attribute @" + a.getKey() + " differs: \"" + a.getValue() + "\" vs \"" + otherValue + "\"");
+			}
+		}
+		for (String name : otherAttrs.keySet()) {
+			if (!thisAttrs.containsKey(name)) {
+				report(path, "attribute @" + name + " only in other");
+			}
+		}
+	}
+
+	private void report(String path, String description) {
+		differences++;
+		out.println(description + " - at " + path);
+	}
+
+	private static final int THIS = 0;
+	private static final int OTHER = 1;
+
+	/*
+	 * Per-element bookkeeping: occurrence counters used to build sibling keys,
+	 * and the window of subtrees that have not been matched yet.
+	 *
+	 * Counters are kept only for the window most recently seen names, so a
+	 * flat level of millions of uniquely keyed siblings costs no more than a
+	 * small one. A name that comes back after more than a window of other
+	 * names starts counting from 1 again, on both sides alike when they
+	 * agree. If its new key is still parked, the parked subtree is reported
+	 * as only on its side.
+	 */
+	private class Level {
+		private final String path;
+		private final List<Map<String, Integer>> occurrences = new ArrayList<Map<String, Integer>>(2);
+		private final List<LinkedHashMap<String, Subtree>> parked = new ArrayList<LinkedHashMap<String, Subtree>>(2);
+
+		Level(String path) {
+			this.path = path;
+			for (int i = 0; i < 2; i++) {
+				occurrences.add(new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+						return size() > window;
+					}
+				});
+				parked.add(new LinkedHashMap<String, Subtree>());
+			}
+		}
+
+		String keyFor(Side side, int which) {
+			String base = side.baseKey();
+			Map<String, Integer> seen = occurrences.get(which);
+			Integer n = seen.get(base);
+			n = (n == null) ? 1 : n + 1;
+			seen.put(base, n);
+			return base + "[" + n + "]";
+		}
+
+		void park(int which, String key, Subtree subtree) {
+			LinkedHashMap<String, Subtree> otherParked = parked.get(1 - which);
+			Subtree match = otherParked.remove(key);
+			if (match != null) {
+				if (!match.digest.equals(subtree.digest)) {
+					report(path + "/" + key, "content differs (out of order, line "
+							+ (which == THIS ? subtree.line + " vs " + match.line : match.line + " vs " + subtree.line) + ")");
+				}
+				return;
+			}
+			LinkedHashMap<String, Subtree> mine = parked.get(which);
+			// a restarted counter can repeat a key still parked; that subtree
+			// went unmatched, so report it rather than lose it
+			Subtree displaced = mine.remove(key);
+			if (displaced != null) {
+				reportOnly(which, key, displaced);
+			}
+			mine.put(key, subtree);
+			if (mine.size() > window) {
+				Iterator<Map.Entry<String, Subtree>> it = mine.entrySet().iterator();
+				Map.Entry<String, Subtree> oldest = it.next();
+				it.remove();
+				reportOnly(which, oldest.getKey(), oldest.getValue());
+			}
+		}
+
+		void flush() {
+			for (int which = THIS; which <= OTHER; which++) {
+				for (Map.Entry<String, Subtree> e : parked.get(which).entrySet()) {
+					reportOnly(which, e.getKey(), e.getValue());
+				}
+				parked.get(which).clear();
+			}
+		}
+
+		private void reportOnly(int which, String key, Subtree subtree) {
+			report(path + "/" + key, (which == THIS ? "onlyThis" : "onlyOther") + " (line " + subtree.line + ")");
+		}
+	}
+
+	private static class Subtree {
+		final String digest;
+		final int line;
+		Subtree(String digest, int line) {
+			this.digest = digest;
+			this.line = line;
+		}
+	}
+
+	/*
+	 * One document being read. The reader is always left on a START_ELEMENT or
+	 * END_ELEMENT (or END_DOCUMENT); text seen on the way is accumulated for
+	 * the enclosing element.
+	 */
+	private static class Side {
+		private final XMLStreamReader reader;
+		private final List<StringBuilder> text = new ArrayList<StringBuilder>();
+		private final MessageDigest md;
+
+		Side(XMLStreamReader reader) {
+			this.reader = reader;
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		void next() throws XMLStreamException {
+			if (atStart()) {
+				text.add(new StringBuilder());
+			}
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT || event == XMLStreamConstants.END_ELEMENT) {
+					return;
+				}
+				if ((event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) && !text.isEmpty()) {
+					String s = reader.getText().trim();
+					StringBuilder sb = text.get(text.size() - 1);
+					if (s.length() > 0) {
+						if (sb.length() > 0) sb.append(' ');
+						sb.append(s);
+					}
+				}
+			}
+		}
+
+		boolean atStart() {
+			return reader.getEventType() == XMLStreamConstants.START_ELEMENT;
+		}
+
+		boolean atEnd() {
+			return reader.getEventType() != XMLStreamConstants.START_ELEMENT;
+		}
+
+		String text() {
+			return text.isEmpty() ? "" : text.get(text.size() - 1).toString();
+		}
+
+		void popText() {
+			if (!text.isEmpty()) text.remove(text.size() - 1);
+		}
+
+		String baseKey() {
+			StringBuilder sb = new StringBuilder(reader.getLocalName());
+			for (String name : KEY_ATTRIBUTES) {
+				String value = reader.getAttributeValue(null, name);
+				if (value != null) {
+					sb.append("[@").append(name).append("=\"").append(value).append("\"]");
+				}
+			}
+			return sb.toString();
+		}
+
+		Map<String, String> attributes() {
+			Map<String, String> m = new LinkedHashMap<String, String>();
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				m.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			}
+			return m;
+		}
+
+		/*
+		 * Consume the subtree under the current START_ELEMENT, leaving the
+		 * reader on its END_ELEMENT, and return a digest of its canonical form
+		 * (names, sorted attributes, trimmed text).
+		 */
+		Subtree skipSubtree() throws XMLStreamException {
+			int line = reader.getLocation().getLineNumber();
+			md.reset();
+			int depth = 0;
+			while (true) {
+				int event = reader.getEventType();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					depth++;
+					update("<" + reader.getLocalName());
+					List<String> attrs = new ArrayList<String>(attributes().size());
+					for (Map.Entry<String, String> a : attributes().entrySet()) {
+						attrs.add(a.getKey() + "=" + a.getValue());
+					}
+					Collections.sort(attrs);
+					for (String a : attrs) {
+						update(" " + a);
+					}
+					update(">");
+				}
+				else if (event == XMLStreamConstants.END_ELEMENT) {
+					depth--;
+					update("</>");
+					if (depth == 0) {
+						break;
+					}
+				}
+				else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+					String s = reader.getText().trim();
+					if (s.length() > 0) {
+						update(s);
+					}
+				}
+				if (!reader.hasNext()) {
+					break;
+				}
+				reader.next();
+			}
+			return new Subtree(Dex.hexEncode(md.digest()), line);
+		}
+
+		private void update(String s) {
+			try {
+				md.update(s.getBytes("UTF-8"));
+			} catch (java.io.UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException, XMLStreamException {
+		if (args.length != 2) {
+			usage("Exactly two command line arguments required.");
+		}
+		if ( !(new java.io.File(args[0]).exists())) {
+			usage("File " + args[0] + " not found.");
+		}
+		if ( !(new java.io.File(args[1]).exists())) {
+			usage("File " + args[1] + " not found.");
+		}
+
+		InputStream thisXml = new FileInputStream(args[0]);
+		InputStream otherXml = new FileInputStream(args[1]);
+		int n = new StreamingXmlDiff(thisXml, otherXml, System.out).diff();
+		thisXml.close();
+		otherXml.close();
+		System.out.println(n + " difference(s) found");
+		Out.exit(n == 0 ? 0 : 2);
+	}
+
+	private static void usage (String err) {
+		if (err!=null) Out.err("\nERROR: "+err);
+
+		Out.err("\nUsage:\njava dex.StreamingXmlDiff XML1 XML2");
+		Out.err("Compare two xml files in bounded memory, and write differences to stdout");
+		Out.err("as they are found. Exits with 0 if the files match, 2 otherwise.");
+
+		Out.exit(1);
+	}
+}
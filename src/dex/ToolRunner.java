@@ -0,0 +1,420 @@
+package dex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs one invocation of an external tool for a DEX wrapper.
+ *
+ * The command is passed to a ProcessBuilder as an argument vector (so file
+ * names with spaces survive), stderr is drained on its own thread so a chatty
+ * child can never block on a full pipe, stdout is read through a large
+ * buffer, and an optional timeout kills the child. finish() waits for the
+ * child, reports per-invocation metrics, and makes the exit status
+ * available for recording in the DEX.
+ *
+ * The default timeout, in seconds, is read from the dex.tool.timeout system
+ * property; 0 (the default) means no timeout. Text output is decoded as
+ * UTF-8, or as named by the dex.tool.charset system property; malformed
+ * input is replaced rather than dropped or fatal.
+ *
+ * A wrapper that calls setReplay() before start() gets the output of an
+ * earlier identical run from the ReplayCache, if there is one, in place of
+ * running the child; otherwise the output is saved there as it is read.
+ */
+public class ToolRunner {
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/** At most this much of the child's stderr is kept for error reports. */
+	private static final int MAX_STDERR = 64 * 1024;
+
+	private final List<String> command;
+	private long timeoutMillis = Long.getLong("dex.tool.timeout", 0) * 1000;
+
+	private Process process;
+	private CountingInputStream stdout;
+	private final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+	private long stderrBytes = 0;
+	private Thread stderrDrain;
+	private Thread watchdog;
+	private volatile boolean timedOut = false;
+	private long startNanos;
+	private long elapsedNanos;
+	private int exitStatus = -1;
+	private boolean finished = false;
+	private String replayKey;
+	private boolean replayed = false;
+	private File replayCapture;
+	private OutputStream replayOut;
+
+	public ToolRunner(String... command) {
+		this(Arrays.asList(command));
+	}
+
+	public ToolRunner(List<String> command) {
+		this.command = Collections.unmodifiableList(new ArrayList<String>(command));
+	}
+
+	/**
+	 * The command as recorded in a DEX CommandLine element: the arguments
+	 * joined by single spaces.
+	 */
+	public static String commandLine(List<String> command) {
+		StringBuilder sb = new StringBuilder();
+		for (String arg : command) {
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(arg);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The CommandLine of a DEX wrapper's own invocation, for output the
+	 * wrapper produced itself rather than by running a tool.
+	 */
+	public static String commandLine(Class<?> wrapper, String... args) {
+		List<String> command = new ArrayList<String>();
+		command.add("java");
+		command.add(wrapper.getName());
+		command.addAll(Arrays.asList(args));
+		return commandLine(command);
+	}
+
+	public String getCommandLine() {
+		return commandLine(command);
+	}
+
+	public List<String> getCommand() {
+		return command;
+	}
+
+	/**
+	 * @param millis kill the child if it runs longer than this; 0 for no limit
+	 */
+	public void setTimeout(long millis) {
+		timeoutMillis = millis;
+	}
+
+	/**
+	 * Use the ReplayCache, if it is turned on, for this run of a deterministic
+	 * tool.
+	 * @param version the tool's version string, as recorded in the DEX
+	 * @param inputFilename the file the tool reads
+	 * @param inputMD5 the MD5 of the file's content
+	 */
+	public void setReplay(String version, String inputFilename, String inputMD5) {
+		if (ReplayCache.isEnabled()) {
+			replayKey = ReplayCache.getKey(command, version, inputFilename, inputMD5);
+		}
+	}
+
+	/**
+	 * @return whether the output is being replayed rather than produced
+	 */
+	public boolean isReplayed() {
+		return replayed;
+	}
+
+	/**
+	 * @return the ReplayCache key of this run, or null if it isn't cached
+	 */
+	public String getReplayKey() {
+		return replayKey;
+	}
+
+	public ToolRunner start() throws IOException {
+		startNanos = System.nanoTime();
+		File cached = (replayKey == null) ? null : ReplayCache.get(replayKey);
+		if (cached != null) {
+			replayed = true;
+			stdout = new CountingInputStream(new BufferedInputStream(new FileInputStream(cached), BUFFER_SIZE));
+			return this;
+		}
+
+		ProcessBuilder pb = new ProcessBuilder(command);
+		process = pb.start();
+		process.getOutputStream().close();
+		InputStream in = new BufferedInputStream(process.getInputStream(), BUFFER_SIZE);
+		if (replayKey != null) {
+			try {
+				replayCapture = ReplayCache.createTemporary(replayKey);
+				// in case a wrapper exits without calling finish()
+				replayCapture.deleteOnExit();
+				replayOut = new BufferedOutputStream(new FileOutputStream(replayCapture), BUFFER_SIZE);
+				in = new TeeInputStream(in, replayOut);
+			} catch (IOException e) {
+				// the cache is an optimization; carry on without it
+				Out.err("WARNING: could not write to the replay cache: " + e.getMessage());
+				replayCapture = null;
+			}
+		}
+		stdout = new CountingInputStream(in);
+
+		stderrDrain = new Thread(new Runnable() {
+			public void run() {
+				drainStderr();
+			}
+		}, "stderr: " + command.get(0));
+		stderrDrain.setDaemon(true);
+		stderrDrain.start();
+
+		if (timeoutMillis > 0) {
+			watchdog = new Thread(new Runnable() {
+				public void run() {
+					try {
+						if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+							timedOut = true;
+							process.destroyForcibly();
+						}
+					} catch (InterruptedException e) {
+						// finish() is done with us
+					}
+				}
+			}, "timeout: " + command.get(0));
+			watchdog.setDaemon(true);
+			watchdog.start();
+		}
+		return this;
+	}
+
+	private void drainStderr() {
+		byte[] buf = new byte[8192];
+		InputStream err = process.getErrorStream();
+		try {
+			for (int n; (n = err.read(buf)) != -1;) {
+				synchronized (stderr) {
+					stderrBytes += n;
+					int room = MAX_STDERR - stderr.size();
+					if (room > 0) {
+						stderr.write(buf, 0, Math.min(room, n));
+					}
+				}
+			}
+		} catch (IOException e) {
+			// the child is gone; nothing left to drain
+		}
+	}
+
+	/**
+	 * The child's stdout, buffered. Only valid between start() and finish().
+	 */
+	public InputStream getInputStream() {
+		return stdout;
+	}
+
+	/**
+	 * The child's stdout as text in the tool output charset, to be read as
+	 * it is produced. Characters split across reads are decoded correctly.
+	 */
+	public BufferedReader getReader() {
+		return getReader(getOutputCharset());
+	}
+
+	public BufferedReader getReader(Charset charset) {
+		return new BufferedReader(new InputStreamReader(stdout, charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE)), BUFFER_SIZE);
+	}
+
+	public static Charset getOutputCharset() {
+		return Charset.forName(System.getProperty("dex.tool.charset", "UTF-8"));
+	}
+
+	/**
+	 * Copy all of the child's stdout to the given file.
+	 * @return the number of bytes copied
+	 */
+	public long copyTo(File file) throws IOException {
+		return copyTo(file, -1, null);
+	}
+
+	/**
+	 * Copy all of the child's stdout to the given file with a Transfer.
+	 * @param expectedSize the size to preallocate, or -1 if unknown
+	 * @param digest updated with the bytes copied; may be null
+	 * @return the number of bytes copied
+	 */
+	public long copyTo(File file, long expectedSize, MessageDigest digest) throws IOException {
+		return new Transfer(digest).copy(stdout, file, expectedSize);
+	}
+
+	/**
+	 * Wait for the child to exit, after discarding any stdout the caller did
+	 * not read, and report the invocation's metrics.
+	 * @return the child's exit status
+	 * @throws IOException if the child was killed for exceeding the timeout
+	 */
+	public int finish() throws IOException {
+		if (finished) {
+			return exitStatus;
+		}
+		finished = true;
+		if (replayed) {
+			stdout.close();
+			exitStatus = 0;
+			elapsedNanos = System.nanoTime() - startNanos;
+			Out.debug(command.get(0) + ": replayed, " + getElapsedMillis() + " ms");
+			return exitStatus;
+		}
+		byte[] buf = new byte[BUFFER_SIZE];
+		while (stdout.read(buf) != -1);
+		stdout.close();
+		try {
+			exitStatus = process.waitFor();
+			stderrDrain.join();
+			if (watchdog != null) {
+				watchdog.interrupt();
+			}
+		} catch (InterruptedException e) {
+			process.destroyForcibly();
+			if (replayCapture != null) {
+				replayOut.close();
+				replayCapture.delete();
+			}
+			throw new IOException("Interrupted while waiting for " + getCommandLine());
+		}
+		elapsedNanos = System.nanoTime() - startNanos;
+
+		Out.debug(command.get(0) + ": exit " + exitStatus
+				+ ", " + getElapsedMillis() + " ms"
+				+ ", " + stdout.count + " bytes stdout"
+				+ ", " + stderrBytes + " bytes stderr");
+		if (replayCapture != null) {
+			replayOut.close();
+			if (exitStatus == 0 && !timedOut) {
+				ReplayCache.commit(replayCapture, replayKey);
+			}
+			else {
+				replayCapture.delete();
+			}
+		}
+		if (timedOut) {
+			throw new IOException(getCommandLine() + " timed out after " + timeoutMillis + " ms");
+		}
+		if (exitStatus != 0) {
+			Out.err("WARNING: " + getCommandLine() + " exited with status " + exitStatus);
+			String err = getStderr().trim();
+			if (err.length() > 0) {
+				Out.err(err);
+			}
+		}
+		return exitStatus;
+	}
+
+	/**
+	 * Add the exit status of this (finished) invocation to the entry, and a
+	 * Replayed element if the output came from the ReplayCache.
+	 */
+	public void recordIn(Entry entry) {
+		entry.addExitStatus(exitStatus);
+		if (replayed) {
+			entry.addReplayed(replayKey);
+		}
+	}
+
+	public int getExitStatus() {
+		return exitStatus;
+	}
+
+	public String getStderr() {
+		synchronized (stderr) {
+			return stderr.toString();
+		}
+	}
+
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000;
+	}
+
+	public long getStdoutBytes() {
+		return stdout.count;
+	}
+
+	/**
+	 * Run a command and return the first line of its output, trimmed; used
+	 * to find out the version of a tool.
+	 */
+	public static String readFirstLine(String... command) throws IOException {
+		ToolRunner runner = new ToolRunner(command).start();
+		String line = runner.getReader().readLine();
+		runner.finish();
+		if (line == null) {
+			throw new IOException("No output from " + runner.getCommandLine());
+		}
+		return line.trim();
+	}
+
+	/*
+	 * Copies everything read to an output stream.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) copy.write(b);
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) copy.write(b, off, n);
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			byte[] buf = new byte[(int)Math.min(n, BUFFER_SIZE)];
+			int skipped = read(buf, 0, buf.length);
+			return Math.max(skipped, 0);
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		long count = 0;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) count++;
+			return b;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) count += n;
+			return n;
+		}
+
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package dex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A registry of tool version strings, so that wrappers do not spawn an
+ * extra "tool -V" process on every run.
+ *
+ * Each probe (e.g., "icat -V") is run once per binary. The result is stored
+ * in tool-versions.properties under the DEX cache directory, stamped with
+ * the binary's resolved path, size and modification time (and the OS
+ * version, since some probes such as "uname -psrv" describe the running
+ * kernel rather than the binary). When the stamp no longer matches, the
+ * probe is run again and the entry replaced.
+ */
+public class ToolVersions {
+	private static final String FILENAME = "tool-versions.properties";
+
+	private static Properties versions = null;
+
+	/**
+	 * Return the first line of output of the given probe command, running it
+	 * only if the binary has changed since the last time it was run.
+	 */
+	public static synchronized String get(String... probe) throws IOException {
+		File binary = resolve(probe[0]);
+		if (binary == null) {
+			// not on the PATH; let the probe fail (or succeed) the usual way
+			return ToolRunner.readFirstLine(probe);
+		}
+		String key = binary.getCanonicalPath();
+		for (int i = 1; i < probe.length; i++) {
+			key += " " + probe[i];
+		}
+		String stamp = binary.length() + "|" + binary.lastModified() + "|" + System.getProperty("os.version");
+
+		Properties p = load();
+		String cached = p.getProperty(key);
+		if (cached != null && cached.startsWith(stamp + "\t")) {
+			return cached.substring(stamp.length() + 1);
+		}
+
+		String version = ToolRunner.readFirstLine(probe);
+		p.setProperty(key, stamp + "\t" + version);
+		save(key, stamp + "\t" + version);
+		return version;
+	}
+
+	/*
+	 * Find a command the way the shell would: as given if it contains a
+	 * path separator, otherwise on the PATH.
+	 */
+	static File resolve(String command) {
+		if (command.indexOf(File.separatorChar) >= 0) {
+			File f = new File(command);
+			return f.isFile() ? f : null;
+		}
+		String path = System.getenv("PATH");
+		if (path == null) {
+			return null;
+		}
+		for (String dir : path.split(File.pathSeparator)) {
+			File f = new File(dir.length() == 0 ? "." : dir, command);
+			if (f.isFile() && f.canExecute()) {
+				return f;
+			}
+		}
+		return null;
+	}
+
+	private static Properties load() {
+		if (versions == null) {
+			versions = read(new File(Dex.getCacheDirectory(), FILENAME));
+		}
+		return versions;
+	}
+
+	private static Properties read(File file) {
+		Properties p = new Properties();
+		if (file.exists()) {
+			try {
+				InputStream in = new FileInputStream(file);
+				try {
+					p.load(in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Out.err("WARNING: could not read " + file + ": " + e.getMessage());
+			}
+		}
+		return p;
+	}
+
+	/*
+	 * Other wrappers may be saving entries of their own at the same time, so
+	 * under a lock on a file beside it, merge this one into what is on disk
+	 * now, write the result to a temporary file of our own, and move it into
+	 * place in one step. Readers, which don't lock, see the old file or the
+	 * new one, never part of either.
+	 */
+	private static void save(String key, String value) {
+		File dir = Dex.getCacheDirectory();
+		File file = new File(dir, FILENAME);
+		try {
+			dir.mkdirs();
+			RandomAccessFile lockFile = new RandomAccessFile(new File(dir, FILENAME + ".lock"), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					Properties p = read(file);
+					p.setProperty(key, value);
+					File tmp = File.createTempFile(FILENAME, ".tmp", dir);
+					try {
+						OutputStream out = new FileOutputStream(tmp);
+						try {
+							p.store(out, "DEX tool version cache");
+						} finally {
+							out.close();
+						}
+						Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					} finally {
+						tmp.delete();
+					}
+					versions = p;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		} catch (IOException e) {
+			// the cache is an optimization; carry on without it
+			Out.err("WARNING: could not write " + file + ": " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package dex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Copies bulk data (partitions, carved files) into output files in large
+ * chunks through a direct buffer, or with FileChannel.transferTo when the
+ * source is itself a file and nothing needs to see the bytes on the way.
+ *
+ * If the expected size is known (from the partition table or the MFT) the
+ * output file is preallocated to it, and trimmed afterwards if less arrived.
+ * A file's scattered extents, holes included, can be copied in one go.
+ * An optional MessageDigest is updated with everything copied, so the
+ * output need not be read back to hash it. Each copy reports its
+ * throughput with Out.debug.
+ */
+public class Transfer {
+	public static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final MessageDigest digest;
+	private ByteBuffer buffer = null;
+
+	public Transfer() {
+		this(null);
+	}
+
+	/**
+	 * @param digest updated with every byte copied; may be null
+	 */
+	public Transfer(MessageDigest digest) {
+		this.digest = digest;
+	}
+
+	/**
+	 * Copy a stream to a file, replacing its contents.
+	 * @param expectedSize the size to preallocate, or -1 if unknown
+	 * @return the number of bytes copied
+	 */
+	public long copy(InputStream in, File file, long expectedSize) throws IOException {
+		return copy(Channels.newChannel(in), file, expectedSize);
+	}
+
+	public long copy(ReadableByteChannel in, File file, long expectedSize) throws IOException {
+		long start = System.nanoTime();
+		RandomAccessFile raf = open(file, expectedSize);
+		long total = 0;
+		try {
+			FileChannel out = raf.getChannel();
+			ByteBuffer buf = getBuffer();
+			boolean eof = false;
+			while (!eof) {
+				buf.clear();
+				// fill the whole buffer, so that each write is large
+				while (buf.hasRemaining()) {
+					if (in.read(buf) == -1) {
+						eof = true;
+						break;
+					}
+				}
+				buf.flip();
+				total += write(buf, out, total);
+			}
+			finish(raf, total, expectedSize);
+		} finally {
+			raf.close();
+		}
+		report(file, total, start);
+		return total;
+	}
+
+	/**
+	 * Copy count bytes from the given position of a file to another file,
+	 * replacing its contents. The source's own position is not used, so
+	 * several copies may share one channel.
+	 * @return the number of bytes copied, less than count if the source ends
+	 */
+	public long copy(FileChannel in, long position, long count, File file) throws IOException {
+		return copy(in, new long[] { position }, new long[] { count }, file);
+	}
+
+	/**
+	 * Copy a series of extents of a file, one after another, to another file,
+	 * replacing its contents. An extent with a negative position is a hole,
+	 * copied as zeros. The source's own position is not used.
+	 * @return the number of bytes copied, less than the total if the source ends
+	 */
+	public long copy(FileChannel in, long[] positions, long[] counts, File file) throws IOException {
+		long start = System.nanoTime();
+		long expected = 0;
+		for (long count : counts) {
+			expected += count;
+		}
+		RandomAccessFile raf = open(file, expected);
+		long total = 0;
+		try {
+			FileChannel out = raf.getChannel();
+			for (int i = 0; i < positions.length; i++) {
+				long n = (positions[i] < 0) ? hole(counts[i]) : copy(in, positions[i], counts[i], out, total);
+				total += n;
+				if (n < counts[i]) {
+					break;
+				}
+			}
+			finish(raf, total, expected);
+		} finally {
+			raf.close();
+		}
+		report(file, total, start);
+		return total;
+	}
+
+	/*
+	 * Copy one extent to the given position of the output.
+	 */
+	private long copy(FileChannel in, long position, long count, FileChannel out, long outPosition) throws IOException {
+		long copied = 0;
+		if (digest == null) {
+			out.position(outPosition);
+			while (copied < count) {
+				long n = in.transferTo(position + copied, count - copied, out);
+				if (n <= 0) {
+					break;
+				}
+				copied += n;
+			}
+		}
+		else {
+			ByteBuffer buf = getBuffer();
+			while (copied < count) {
+				buf.clear();
+				if (count - copied < buf.capacity()) {
+					buf.limit((int)(count - copied));
+				}
+				int n = in.read(buf, position + copied);
+				if (n == -1) {
+					break;
+				}
+				buf.flip();
+				copied += write(buf, out, outPosition + copied);
+			}
+		}
+		return copied;
+	}
+
+	/*
+	 * A run of zeros: the preallocated output already holds them, so only
+	 * the digest needs to see them.
+	 */
+	private long hole(long count) {
+		if (digest != null) {
+			// the last copy left the limit at the end of its data
+			ByteBuffer buf = getBuffer();
+			buf.clear();
+			int zeroed = (int)Math.min(count, buf.capacity());
+			for (int i = 0; i < zeroed; i++) {
+				buf.put(i, (byte)0);
+			}
+			for (long left = count; left > 0;) {
+				int n = (int)Math.min(left, zeroed);
+				buf.clear().limit(n);
+				digest.update(buf);
+				left -= n;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the hex digest of everything copied so far; resets the digest
+	 */
+	public String getDigest() {
+		return Dex.hexEncode(digest.digest());
+	}
+
+	private ByteBuffer getBuffer() {
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		return buffer;
+	}
+
+	private static RandomAccessFile open(File file, long expectedSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		if (expectedSize > 0) {
+			raf.setLength(expectedSize);
+		}
+		return raf;
+	}
+
+	/*
+	 * Digest and write out the buffer at the given file position.
+	 */
+	private int write(ByteBuffer buf, FileChannel out, long position) throws IOException {
+		int n = buf.remaining();
+		if (digest != null) {
+			digest.update(buf.duplicate());
+		}
+		while (buf.hasRemaining()) {
+			position += out.write(buf, position);
+		}
+		return n;
+	}
+
+	private static void finish(RandomAccessFile raf, long total, long expectedSize) throws IOException {
+		if (expectedSize > total) {
+			raf.setLength(total);
+		}
+	}
+
+	private static void report(File file, long total, long start) {
+		long nanos = Math.max(1, System.nanoTime() - start);
+		Out.debug("Transfer: " + total + " bytes to " + file + " in " + nanos / 1000000 + " ms ("
+				+ (total * 1000 / nanos) + " MB/s)");
+	}
+}
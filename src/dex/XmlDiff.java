@@ -9,8 +9,15 @@ import org.custommonkey.xmlunit.DetailedDiff;
 import org.custommonkey.xmlunit.Diff;
 import org.xml.sax.SAXException;
 
+import javax.xml.stream.XMLStreamException;
+
 public class XmlDiff {
-	public static void main(String[] args) throws FileNotFoundException, SAXException, IOException {
+	public static void main(String[] args) throws FileNotFoundException, SAXException, IOException, XMLStreamException {
+		boolean streaming = false;
+		if (args.length == 3 && (args[0].equals("-s") || args[0].equals("--streaming"))) {
+			streaming = true;
+			args = new String[] {args[1], args[2]};
+		}
 		if (args.length != 2) {
 			usage("Exactly two command line arguments required.");
 		}
@@ -25,6 +32,13 @@ public class XmlDiff {
 			usage("File " + otherXmlFilename + " not found.");
 		}
 		
+		if (streaming) {
+			// XMLUnit holds both DOMs and every difference in memory; large
+			// DEX files need the bounded-memory walk instead.
+			StreamingXmlDiff.main(args);
+			return;
+		}
+
 		Diff d = new Diff(new FileReader(xmlFilename), new FileReader(otherXmlFilename));
 		DetailedDiff dd = new DetailedDiff(d);
 		
@@ -34,11 +48,12 @@ public class XmlDiff {
 	private static void usage (String err) {
 		if (err!=null) Out.err("\nERROR: "+err);
 
-		Out.err("\nUsage:\njava dex.XmlDiff XML1 XML2");
+		Out.err("\nUsage:\njava dex.XmlDiff [-s, --streaming] XML1 XML2");
 		Out.err("Compare two xml files, and write results to stdout.");
+		Out.err("\t-s, --streaming:  use a bounded-memory streaming diff (for large files)");
 		Out.err("\nauthor:  Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
 
@@ -3,22 +3,16 @@ package exif;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.security.NoSuchAlgorithmException;
-
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.xpath.XPath;
+import java.util.Arrays;
 
 import jargs.gnu.CmdLineParser;
 import dex.Dex;
-import dex.DexVersionException;
-import dex.FileEntry;
+import dex.Orchestrator;
 import dex.Out;
+import dex.ToolVersions;
 
 public class Jhead {
 	private final static String COMMAND = "jhead";
@@ -26,8 +20,8 @@ public class Jhead {
 	private static void usage (String err) {
 		if (err!=null) Out.err("\nERROR: "+err);
 
-		Out.err("\nUsage:\njava exif.Jhead [jhead options] [OPTIONS] file");
-		Out.err("Use jhead to extract EXIF data from the given file; write dex to stdout.");
+		Out.err("\nUsage:\njava exif.Jhead [jhead options] [OPTIONS] file...");
+		Out.err("Use jhead to extract EXIF data from the given files; write dex to stdout.");
 		Out.err("\t[jhead options]:");
 		Out.err("\t\tno jhead options are currently supported.");
 		Out.err("");
@@ -36,16 +30,18 @@ public class Jhead {
 		Out.err("\t\t--input-dex  INFILE:  read from input dex INFILE; output dex");
 		Out.err("\t\t                      will include all data from INFILE");
 		Out.err("\t\t--output-dex OUTFILE: write DEX to OUTFILE");
+		Out.err("\t\t-j, --threads N:      run at most N jhead processes at once");
 		Out.err("\nDex wrapper for jhead\nauthor: Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 	
-	public static void main(String args[]) throws IOException, NoSuchAlgorithmException, DexVersionException, JDOMException {
+	public static void main(String args[]) throws Exception {
 		CmdLineParser parser = new CmdLineParser();
 		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
 		CmdLineParser.Option outputXml = parser.addStringOption("output-dex");
 		CmdLineParser.Option inputXml = parser.addStringOption("input-dex");
+		CmdLineParser.Option threadsOption = parser.addIntegerOption('j', "threads");
 				
 		try {
 			parser.parse(args);
@@ -60,60 +56,33 @@ public class Jhead {
 		}
 		
 		String[] otherArgs = parser.getRemainingArgs();		
-		if (otherArgs.length != 1) {
-			usage("Exactly one argument expected.");
+		if (otherArgs.length == 0) {
+			usage("At least one file expected.");
 		}
-		
-		String exifFilename = otherArgs[0];
-		if ( !(new File(exifFilename).exists())) {
-			usage("File " + exifFilename + " not found.");
+		for (String exifFilename : otherArgs) {
+			if ( !(new File(exifFilename).exists())) {
+				usage("File " + exifFilename + " not found.");
+			}
 		}
 
-		String commandLine = COMMAND + " " + exifFilename;
-
-		Dex evidence = null;
-		String xpathString = null;
-
 		String inputXmlFilename = (String)parser.getOptionValue(inputXml);
-		String md5sum = Dex.computeMD5(exifFilename);
-		if (inputXmlFilename == null) {
-			evidence = new Dex();			
-			FileEntry f = new FileEntry(evidence.getRoot());
-			f.addFilename(exifFilename);
-			f.setMD5sum(md5sum);			
-			xpathString = f.getXPath();
-		}
-		else {
-			evidence = new Dex(inputXmlFilename);
-			xpathString = "/DEXroot/File[@MD5Sum=\"" + md5sum + "\"]";
-			XPath xpath = XPath.newInstance(xpathString);
-			Element e = (Element)xpath.selectSingleNode(evidence.getRoot());
-			if (e == null) {
-				usage("Specified file not found in dex INFILE.");
-			}			
-		}
-
-		ExifEntry exifEntry = new ExifEntry(evidence.getRoot());
-		exifEntry.setParentPointer(xpathString);
+		Dex evidence = (inputXmlFilename == null) ? new Dex() : new Dex(inputXmlFilename);
 		
-		Process p = Runtime.getRuntime().exec(COMMAND + " -V");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+		String version = ToolVersions.get(COMMAND, "-V");
 		if (!version.contains("2.")) {
 			Out.err("WARNING: version 2.x of jhead expected.");
 		}
-		exifEntry.addInformationSource(version, commandLine);
-		
-		p = Runtime.getRuntime().exec(commandLine);
-		InputStream in = p.getInputStream();
-		StringBuilder sb = new StringBuilder();
-		byte[] buf = new byte[1024];
-	    for (int n; (n = in.read(buf)) != -1;) {
-	        sb.append(new String(buf, 0, n));
-	    }
-	    String rawOutput = sb.toString();
-	    exifEntry.addRawOutput(rawOutput);
-	    
-	    parseFields(rawOutput, exifEntry);
+		int threads = (Integer)parser.getOptionValue(threadsOption, Orchestrator.getDefaultLimit(Orchestrator.CPU));
+		try {
+			Photos.run(evidence, inputXmlFilename != null, COMMAND, version, Arrays.asList(otherArgs), threads,
+					new Photos.FieldParser() {
+						public void parseFields(BufferedReader br, ExifEntry exifEntry) throws IOException {
+							Jhead.parseFields(br, exifEntry);
+						}
+					});
+		} catch (FileNotFoundException e) {
+			usage(e.getMessage());
+		}
 		
 		String xmlOutputFilename = (String)parser.getOptionValue(outputXml);
 		if (xmlOutputFilename == null) {
@@ -124,9 +93,10 @@ public class Jhead {
 
 	}
 
-	private static void parseFields(String rawOutput, ExifEntry exifEntry) throws IOException {
-		// Scanner not actually that useful in this case...
-		BufferedReader br = new BufferedReader(new StringReader(rawOutput));
+	/*
+	 * Add fields to the entry as the tool prints them.
+	 */
+	private static void parseFields(BufferedReader br, ExifEntry exifEntry) throws IOException {
 
 		String tag;
 		String value;
@@ -0,0 +1,78 @@
+package exif;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jdom.Element;
+import org.jdom.xpath.XPath;
+
+import dex.Dex;
+import dex.FileEntry;
+import dex.Orchestrator;
+import dex.ToolRunner;
+
+/**
+ * Runs one of the EXIF tools over several photos at once, for the wrappers.
+ * Each photo is hashed, run through the tool and parsed by its own task;
+ * the entries are added to the DEX in the order the photos were given.
+ */
+class Photos {
+	/** A wrapper's parser for its tool's output. */
+	interface FieldParser {
+		void parseFields(BufferedReader br, ExifEntry exifEntry) throws IOException;
+	}
+
+	/**
+	 * Add an Exif entry for each photo, and a File entry for it unless
+	 * there is an input DEX, which must already have one.
+	 * @throws FileNotFoundException if a photo is not in the input DEX
+	 */
+	static void run(Dex evidence, final boolean inputDex, final String command, final String version,
+			List<String> filenames, int threads, final FieldParser parser) throws Exception {
+		List<Callable<Element>> tasks = new ArrayList<Callable<Element>>(filenames.size());
+		for (final String filename : filenames) {
+			tasks.add(new Callable<Element>() {
+				public Element call() throws Exception {
+					Element scratch = Orchestrator.createScratchRoot();
+					String md5sum = Dex.computeMD5(filename);
+					String xpathString;
+					if (!inputDex) {
+						FileEntry f = new FileEntry(scratch);
+						f.addFilename(filename);
+						f.setMD5sum(md5sum);
+						xpathString = f.getXPath();
+					}
+					else {
+						xpathString = "/DEXroot/File[@MD5Sum=\"" + md5sum + "\"]";
+					}
+
+					ExifEntry exifEntry = new ExifEntry(scratch);
+					exifEntry.setParentPointer(xpathString);
+					ToolRunner runner = new ToolRunner(command, filename);
+					exifEntry.addInformationSource(version, runner.getCommandLine());
+					runner.setReplay(version, filename, md5sum);
+					runner.start();
+					parser.parseFields(runner.getReader(), exifEntry);
+					runner.finish();
+					runner.recordIn(exifEntry);
+					return scratch;
+				}
+			});
+		}
+		List<Element> results = Orchestrator.run(Orchestrator.CPU, threads, tasks);
+
+		if (inputDex) {
+			for (int i = 0; i < results.size(); i++) {
+				Element exif = results.get(i).getChild("Exif");
+				if (XPath.selectSingleNode(evidence.getRoot(), exif.getAttributeValue("ParentPtr")) == null) {
+					throw new FileNotFoundException("Specified file not found in dex INFILE: " + filenames.get(i));
+				}
+			}
+		}
+		Orchestrator.merge(evidence, results);
+	}
+}
@@ -1,17 +1,18 @@
 package fdisk;
 import dex.Dex;
 import dex.Out;
+import dex.ToolRunner;
+import dex.ToolVersions;
 import disk.DiskImageEntry;
 
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.Scanner;
+import partitions.NativePartitionTable;
 import partitions.PartitionTableEntry;
 
 
@@ -25,9 +26,10 @@ public class Fdisk {
 		Out.err("\tOPTIONS:");
 		Out.err("\t\t-h, --help:       display this help file");
 		Out.err("\t\t--xml-file FILE:  write DEX to FILE");
+		Out.err("\t\t-n, --native:     read the partition table in this JVM instead of running fdisk");
 		Out.err("\nDex wrapper for fdisk\nauthors: Brian Neil Levine, Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -35,6 +37,7 @@ public class Fdisk {
 		CmdLineParser parser = new CmdLineParser();
 		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
 		CmdLineParser.Option xml = parser.addStringOption("xml-file");
+		CmdLineParser.Option nativeOption = parser.addBooleanOption('n', "native");
 
 		try {
 			parser.parse(args);
@@ -61,36 +64,52 @@ public class Fdisk {
 		}
 
 		String commandLine = null;
+		ToolRunner fdisk = null;
 		
 		evidence = new Dex();
 		String imageMD5sum = Dex.computeMD5(imageFilename);
 		DiskImageEntry diskImageEntry = new DiskImageEntry(evidence.getRoot(), imageFilename, imageMD5sum);
 		
 		String osName = System.getProperty("os.name");
-		if (osName.equals("Mac OS X")) {
-			Process p = Runtime.getRuntime().exec("uname -s");
-			String name = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+		if ((Boolean)parser.getOptionValue(nativeOption, Boolean.FALSE)) {
+			NativePartitionTable table = null;
+			try {
+				table = NativePartitionTable.open(imageFilename);
+			} catch (IOException e) {
+				usage(e.getMessage());
+			}
+			PartitionTableEntry partitionTableEntry = new PartitionTableEntry(evidence.getRoot());
+			partitionTableEntry.addInformationSource(table.getVersion(), ToolRunner.commandLine(Fdisk.class, args));
+			partitionTableEntry.setParentPointer(diskImageEntry.getXPath());
+			table.addPrimaryPartitionsTo(partitionTableEntry);
+		}
+		else if (osName.equals("Mac OS X")) {
+			String name = ToolVersions.get("uname", "-s");
 			
-			p = Runtime.getRuntime().exec("uname -r");
-			String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+			String version = ToolVersions.get("uname", "-r");
 			if (!(name.equals("Darwin") && version.equals("9.6.0"))) {
 				Out.err("WARNING: unrecognized version of Mac OS X; Darwin 9.6.0 expected.");
 			}
 			
-			commandLine = COMMAND + " -d " + imageFilename;
+			fdisk = new ToolRunner(COMMAND, "-d", imageFilename);
+			commandLine = fdisk.getCommandLine();
+		
+			version = ToolVersions.get("uname", "-psrv");
+
+			PartitionTableEntry partitionTableEntry = new PartitionTableEntry(evidence.getRoot());
+			partitionTableEntry.addInformationSource(version, commandLine);
+			partitionTableEntry.setParentPointer(diskImageEntry.getXPath());
+			fdisk.setReplay(version, imageFilename, imageMD5sum);
+			fdisk.start();
+			exec_output = new Scanner(fdisk.getInputStream());
+			exec_output.useDelimiter("\n");
+			parse_exec_output(partitionTableEntry);
+			fdisk.finish();
+			fdisk.recordIn(partitionTableEntry);
 		}
 		else {
-			usage("Only Mac OS X fdisk is supported at this time.");
+			usage("Only Mac OS X fdisk is supported at this time; use --native elsewhere.");
 		}
-		
-		Process p = Runtime.getRuntime().exec("uname -psrv");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
-
-		PartitionTableEntry partitionTableEntry = new PartitionTableEntry(evidence.getRoot());
-		partitionTableEntry.addInformationSource(version, commandLine);
-		partitionTableEntry.setParentPointer(diskImageEntry.getXPath());
-		exec_command(commandLine);
-		parse_exec_output(partitionTableEntry);
 
 		String xmlOutputFilename = (String)parser.getOptionValue(xml);
 		if (xmlOutputFilename == null) {
@@ -113,21 +132,10 @@ public class Fdisk {
 
 	static Scanner exec_output;
 	public static Dex evidence;
-	private static void exec_command(String command) {
-		Process p = null;
-		try {
-			p = Runtime.getRuntime().exec(command);
-		} 
-		catch (IOException ex) {
-			ex.printStackTrace();
-		}
-		exec_output = new Scanner(p.getInputStream());
-		exec_output.useDelimiter("\n");
-	}
 	private static int parse_exec_output(PartitionTableEntry subroot)  {
 		if (subroot == null) {
 			System.err.println("No enclosing Raw Disk File in path found. Fatal Error");
-			System.exit(-1);
+			Out.exit(-1);
 		}
 		//	e.g.,
 		//	63,64744,0xAF,-,0,1,1,1023,254,63
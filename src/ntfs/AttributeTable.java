@@ -0,0 +1,296 @@
+package ntfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Every attribute of an MFT entry, for code that wants more than the
+ * usual few: named $DATA streams (alternate data streams), $OBJECT_ID,
+ * $REPARSE_POINT and the rest, and the attributes an $ATTRIBUTE_LIST has
+ * moved out to extension entries.
+ *
+ * load() only walks the attribute headers and notes each one's record,
+ * offset and type; names, run lists and content are decoded when first
+ * asked for and then kept. A scan that only wants, say, timestamps reads
+ * those fields and nothing else. An AttributeTable may be loaded again
+ * and again, reusing its arrays. Until resolve() is called only the base
+ * record's attributes are listed; resolve() reads the $ATTRIBUTE_LIST and
+ * adds the attributes of the extension entries it names.
+ *
+ * The table reads from the records it was loaded from, so a table loaded
+ * from a scanner's reused MftRecord is only good until the scanner moves
+ * on.
+ */
+public class AttributeTable {
+	public static final int OBJECT_ID = 0x40;
+	public static final int REPARSE_POINT = 0xC0;
+
+	private final List<MftRecord> records = new ArrayList<MftRecord>();
+	private int count = 0;
+	private int[] recordIndexes = new int[16];
+	private int[] offsets = new int[16];
+	private int[] types = new int[16];
+	private String[] names = new String[16];
+	private RunList[] runs = new RunList[16];
+	private boolean resolved;
+
+	/**
+	 * Note the attributes of a base record, forgetting any others.
+	 */
+	public void load(MftRecord r) {
+		records.clear();
+		for (int i = 0; i < count; i++) {
+			names[i] = null;
+			runs[i] = null;
+		}
+		count = 0;
+		resolved = false;
+		add(r);
+	}
+
+	private void add(MftRecord r) {
+		int index = records.size();
+		records.add(r);
+		for (int a = r.firstAttribute(); a != -1; a = r.nextAttribute(a)) {
+			if (count == offsets.length) {
+				grow();
+			}
+			recordIndexes[count] = index;
+			offsets[count] = a;
+			types[count] = r.getAttributeType(a);
+			count++;
+		}
+	}
+
+	private void grow() {
+		int n = 2 * offsets.length;
+		int[] ri = new int[n];
+		int[] o = new int[n];
+		int[] t = new int[n];
+		String[] nm = new String[n];
+		RunList[] rl = new RunList[n];
+		System.arraycopy(recordIndexes, 0, ri, 0, count);
+		System.arraycopy(offsets, 0, o, 0, count);
+		System.arraycopy(types, 0, t, 0, count);
+		System.arraycopy(names, 0, nm, 0, count);
+		System.arraycopy(runs, 0, rl, 0, count);
+		recordIndexes = ri;
+		offsets = o;
+		types = t;
+		names = nm;
+		runs = rl;
+	}
+
+	public boolean hasAttributeList() {
+		return find(MftRecord.ATTRIBUTE_LIST, "") != -1;
+	}
+
+	/**
+	 * Read the $ATTRIBUTE_LIST, if there is one, and add the attributes of
+	 * each extension entry it names that says it belongs to this entry.
+	 * @throws IOException if the list or an extension entry can't be read
+	 */
+	public void resolve(NTFSParser parser) throws IOException {
+		if (resolved) {
+			return;
+		}
+		resolved = true;
+		int list = find(MftRecord.ATTRIBUTE_LIST, "");
+		if (list == -1) {
+			return;
+		}
+		MftRecord base = records.get(0);
+		ByteBuffer content = ByteBuffer.wrap(getContent(parser, list)).order(ByteOrder.LITTLE_ENDIAN);
+		List<Long> extensions = new ArrayList<Long>();
+		// entries: type, length, name length and offset, start VCN, file reference, id (Carrier p. 355)
+		for (int p = 0; p + 26 <= content.limit(); ) {
+			int length = content.getShort(p + 4) & 0xFFFF;
+			if (length < 26 || p + length > content.limit()) {
+				break;
+			}
+			long entry = content.getLong(p + 16) & 0xFFFFFFFFFFFFL;
+			if (entry != base.getNumber() && !extensions.contains(entry)) {
+				extensions.add(entry);
+			}
+			p += length;
+		}
+		for (long entry : extensions) {
+			MftRecord r = parser.readRecord(entry);
+			if ((r.getBaseReference() & 0xFFFFFFFFFFFFL) == base.getNumber()) {
+				add(r);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of attributes
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return the record holding attribute i, for its accessors
+	 */
+	public MftRecord getRecord(int i) {
+		return records.get(recordIndexes[i]);
+	}
+
+	/**
+	 * @return attribute i's offset in its record
+	 */
+	public int getOffset(int i) {
+		return offsets[i];
+	}
+
+	public int getType(int i) {
+		return types[i];
+	}
+
+	/**
+	 * @return attribute i's name; "" if it has none
+	 */
+	public String getName(int i) {
+		if (names[i] == null) {
+			MftRecord r = getRecord(i);
+			if (r.getAttributeNameLength(offsets[i]) == 0) {
+				names[i] = "";
+			}
+			else {
+				StringBuilder sb = new StringBuilder();
+				r.appendAttributeName(offsets[i], sb);
+				names[i] = sb.toString();
+			}
+		}
+		return names[i];
+	}
+
+	public boolean isNonResident(int i) {
+		return getRecord(i).isNonResident(offsets[i]);
+	}
+
+	/**
+	 * @return the first attribute of the type and name, the one holding
+	 * VCN 0 if it is split; -1 if there is none
+	 */
+	public int find(int type, String name) {
+		int found = -1;
+		for (int i = 0; i < count; i++) {
+			if (types[i] == type && getName(i).equals(name)) {
+				if (!isNonResident(i) || getRecord(i).getStartVcn(offsets[i]) == 0) {
+					return i;
+				}
+				if (found == -1) {
+					found = i;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return the names of the $DATA attributes: "" for the file's content,
+	 * and the names of its alternate data streams
+	 */
+	public List<String> getStreams() {
+		List<String> streams = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			if (types[i] == MftRecord.DATA && !streams.contains(getName(i))) {
+				streams.add(getName(i));
+			}
+		}
+		return streams;
+	}
+
+	/**
+	 * @return the size of attribute i's content; for one split across
+	 * entries, the size recorded with its first part
+	 */
+	public long getSize(int i) {
+		return getRecord(i).getSize(offsets[i]);
+	}
+
+	/**
+	 * @return the run list of a non-resident attribute i, joined up with
+	 * the parts of the same attribute in other entries
+	 * @throws IOException if a run list is damaged, or the parts leave a gap
+	 */
+	public RunList getRunList(int i) throws IOException {
+		if (runs[i] == null) {
+			String name = getName(i);
+			List<RunList> parts = new ArrayList<RunList>();
+			for (int j = 0; j < count; j++) {
+				if (types[j] == types[i] && isNonResident(j) && getName(j).equals(name)) {
+					MftRecord r = getRecord(j);
+					int a = offsets[j];
+					parts.add(RunList.decode(r.buffer(), r.getRunListOffset(a), a + r.getAttributeLength(a),
+							r.getStartVcn(a)));
+				}
+			}
+			RunList joined = null;
+			while (!parts.isEmpty()) {
+				RunList next = null;
+				for (RunList part : parts) {
+					if (next == null || part.getStartVcn() < next.getStartVcn()) {
+						next = part;
+					}
+				}
+				parts.remove(next);
+				if (joined == null) {
+					joined = next;
+				}
+				else {
+					joined.append(next);
+				}
+			}
+			runs[i] = joined;
+		}
+		return runs[i];
+	}
+
+	/**
+	 * @return attribute i's content, read from the image if it isn't
+	 * resident; sparse runs come out as zeros
+	 */
+	public byte[] getContent(NTFSParser parser, int i) throws IOException {
+		MftRecord r = getRecord(i);
+		int a = offsets[i];
+		if (!r.isNonResident(a)) {
+			int c = r.getContentOffset(a);
+			byte[] content = new byte[r.getContentSize(a)];
+			for (int k = 0; k < content.length; k++) {
+				content[k] = r.get(c + k);
+			}
+			return content;
+		}
+		if (r.getActualSize(a) < 0 || r.getActualSize(a) > Integer.MAX_VALUE - 8) {
+			throw new IOException("Attribute too large to read into memory: " + r.getActualSize(a) + " bytes");
+		}
+		long size = Math.max(0, Math.min(r.getActualSize(a), r.getInitializedSize(a)));
+		byte[] content = new byte[(int)r.getActualSize(a)];
+		ByteBuffer buf = ByteBuffer.wrap(content, 0, (int)size);
+		RunList runList = getRunList(i);
+		int clusterSize = parser.getClusterSize();
+		for (int run = 0; run < runList.size() && buf.hasRemaining(); run++) {
+			long length = Math.min(runList.getLength(run) * clusterSize, buf.remaining());
+			if (runList.isSparse(run)) {
+				buf.position(buf.position() + (int)length);
+				continue;
+			}
+			long position = parser.getClusterOffset(runList.getLcn(run));
+			buf.limit(buf.position() + (int)length);
+			while (buf.hasRemaining()) {
+				int n = parser.getChannel().read(buf, position);
+				if (n == -1) {
+					throw new IOException("Attribute runs past the end of the image");
+				}
+				position += n;
+			}
+			buf.limit((int)size);
+		}
+		return content;
+	}
+}
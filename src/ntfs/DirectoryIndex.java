@@ -0,0 +1,259 @@
+package ntfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads directories through their $I30 indexes, a B+tree of $FILE_NAME
+ * keys (Carrier pp. 369-381): the root node in the resident $INDEX_ROOT
+ * attribute and the others in INDX records of $INDEX_ALLOCATION. Listing a
+ * directory or looking up a name reads only that directory's MFT entry and
+ * the index records on the way, not the whole MFT.
+ *
+ * Names are compared case-insensitively with Character.toUpperCase, which
+ * matches the volume's $UpCase table for all but a few characters; a
+ * lookup of a name made of those may miss. An $INDEX_ALLOCATION that
+ * continues in other entries through an $ATTRIBUTE_LIST is joined up.
+ *
+ * A damaged index is reported rather than followed: each INDX record must
+ * give the VCN it was read from, and a listing reads each record at most
+ * once, so entries that share a child can't send it round the same
+ * subtree again and again.
+ */
+public class DirectoryIndex {
+	private static final String I30 = "$I30";
+	private static final int INDX = 0x58444E49; // "INDX"
+	private static final int HAS_CHILD = 0x01;
+	private static final int LAST = 0x02;
+	/** Deepest tree we'll follow; real ones are a handful of levels. */
+	private static final int MAX_DEPTH = 64;
+
+	private final NTFSParser parser;
+
+	public DirectoryIndex(NTFSParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * @return the directory's entries in index order, DOS 8.3 names
+	 * included
+	 * @throws IOException if the entry isn't a directory or its index is
+	 * damaged
+	 */
+	public List<IndexEntry> list(long directory) throws IOException {
+		Tree tree = open(directory);
+		List<IndexEntry> entries = new ArrayList<IndexEntry>();
+		tree.walk(tree.root, tree.rootNode, entries, 0);
+		return entries;
+	}
+
+	/**
+	 * @return the directory's entry for the name, ignoring case, or null if
+	 * there is none
+	 */
+	public IndexEntry find(long directory, String name) throws IOException {
+		Tree tree = open(directory);
+		ByteBuffer buf = tree.root;
+		int node = tree.rootNode;
+		for (int depth = 0; depth < MAX_DEPTH; depth++) {
+			long child = -1;
+			for (int e = firstEntry(buf, node); e != -1; e = nextEntry(buf, node, e)) {
+				int flags = buf.getInt(e + 12);
+				if ((flags & LAST) == 0) {
+					int cmp = compare(name, buf, e + 16);
+					if (cmp == 0) {
+						return new IndexEntry(buf.getLong(e), buf, e + 16);
+					}
+					if (cmp > 0) {
+						continue;
+					}
+				}
+				if ((flags & HAS_CHILD) != 0) {
+					child = buf.getLong(e + (buf.getShort(e + 8) & 0xFFFF) - 8);
+				}
+				break;
+			}
+			if (child == -1) {
+				return null;
+			}
+			buf = tree.readRecord(child);
+			node = 24;
+		}
+		throw new IOException("Index of entry " + directory + " is too deep");
+	}
+
+	/*
+	 * The directory's index: its root node, and what is needed to read the
+	 * rest.
+	 */
+	private class Tree {
+		final long directory;
+		ByteBuffer root;
+		int rootNode;
+		int recordSize;
+		int vcnShift;
+		RunList runs = null;
+		/** The records walk() has read. */
+		final Set<Long> visited = new HashSet<Long>();
+
+		Tree(long directory) {
+			this.directory = directory;
+		}
+
+		/*
+		 * In-order: each entry's subtree (the names before it), then the
+		 * entry itself.
+		 */
+		void walk(ByteBuffer buf, int node, List<IndexEntry> entries, int depth) throws IOException {
+			if (depth > MAX_DEPTH) {
+				throw new IOException("Index of entry " + directory + " is too deep");
+			}
+			for (int e = firstEntry(buf, node); e != -1; e = nextEntry(buf, node, e)) {
+				int flags = buf.getInt(e + 12);
+				if ((flags & HAS_CHILD) != 0) {
+					long vcn = buf.getLong(e + (buf.getShort(e + 8) & 0xFFFF) - 8);
+					if (!visited.add(vcn)) {
+						throw new IOException("Index of entry " + directory + " refers to record " + vcn + " more than once");
+					}
+					walk(readRecord(vcn), 24, entries, depth + 1);
+				}
+				if ((flags & LAST) != 0) {
+					break;
+				}
+				entries.add(new IndexEntry(buf.getLong(e), buf, e + 16));
+			}
+		}
+
+		/*
+		 * Read an INDX record from $INDEX_ALLOCATION and apply its fixups.
+		 */
+		ByteBuffer readRecord(long vcn) throws IOException {
+			if (runs == null) {
+				throw new IOException("Index of entry " + directory + " points to a missing $INDEX_ALLOCATION");
+			}
+			int clusterSize = parser.getClusterSize();
+			ByteBuffer buf = ByteBuffer.allocate(recordSize).order(ByteOrder.LITTLE_ENDIAN);
+			long offset = vcn << vcnShift;
+			while (buf.hasRemaining()) {
+				long lcn = runs.toLcn(offset / clusterSize);
+				if (lcn < 0) {
+					throw new IOException("Index record " + vcn + " of entry " + directory + " is not allocated");
+				}
+				int within = (int)(offset % clusterSize);
+				buf.limit(Math.min(recordSize, buf.position() + clusterSize - within));
+				long position = parser.getClusterOffset(lcn) + within;
+				while (buf.hasRemaining()) {
+					int n = parser.getChannel().read(buf, position);
+					if (n == -1) {
+						throw new IOException("Index record " + vcn + " of entry " + directory + " is past the end of the image");
+					}
+					position += n;
+					offset += n;
+				}
+				buf.limit(recordSize);
+			}
+			buf.clear();
+			if (buf.getInt(0) != INDX) {
+				throw new IOException("Index record " + vcn + " of entry " + directory + " has no INDX signature");
+			}
+			if (!NTFSParser.applyFixups(buf, parser.getBytesPerSector())) {
+				throw new IOException("Index record " + vcn + " of entry " + directory + " failed its fixup check");
+			}
+			if (buf.getLong(16) != vcn) {
+				throw new IOException("Index record " + vcn + " of entry " + directory + " says it is record " + buf.getLong(16));
+			}
+			return buf;
+		}
+	}
+
+	private Tree open(long directory) throws IOException {
+		AttributeTable attributes = parser.readAttributes(directory);
+		MftRecord r = attributes.getRecord(0);
+		if (!r.isDirectory()) {
+			throw new IOException("Entry " + directory + " is not a directory");
+		}
+		Tree tree = new Tree(directory);
+		int i = attributes.find(MftRecord.INDEX_ROOT, I30);
+		if (i != -1 && !attributes.isNonResident(i) && attributes.getSize(i) >= 32) {
+			// copied out, as the record is only on loan
+			tree.root = ByteBuffer.wrap(attributes.getContent(parser, i)).order(ByteOrder.LITTLE_ENDIAN);
+			tree.rootNode = 16;
+			tree.recordSize = tree.root.getInt(8);
+		}
+		i = attributes.find(MftRecord.INDEX_ALLOCATION, I30);
+		if (i != -1 && attributes.isNonResident(i)) {
+			tree.runs = attributes.getRunList(i);
+		}
+		if (tree.root == null) {
+			throw new IOException("Entry " + directory + " has no $I30 index");
+		}
+		if (tree.recordSize < parser.getBytesPerSector() || tree.recordSize > 1 << 20) {
+			throw new IOException("Index of entry " + directory + " has a bad record size " + tree.recordSize);
+		}
+		// VCNs count clusters, or sectors if a record is smaller than a cluster
+		int unit = (tree.recordSize >= parser.getClusterSize()) ? parser.getClusterSize() : 512;
+		tree.vcnShift = Integer.numberOfTrailingZeros(unit);
+		return tree;
+	}
+
+	/*
+	 * Index entries in a node; node is the offset of its header (Carrier
+	 * p. 375), to which the entry offsets are relative.
+	 */
+
+	private static int firstEntry(ByteBuffer buf, int node) {
+		return checkEntry(buf, node, node + buf.getInt(node));
+	}
+
+	private static int nextEntry(ByteBuffer buf, int node, int e) {
+		if ((buf.getInt(e + 12) & LAST) != 0) {
+			return -1;
+		}
+		return checkEntry(buf, node, e + (buf.getShort(e + 8) & 0xFFFF));
+	}
+
+	private static int checkEntry(ByteBuffer buf, int node, int e) {
+		int end = Math.min(node + buf.getInt(node + 4), buf.limit());
+		if (e < node || e + 16 > end) {
+			return -1;
+		}
+		int length = buf.getShort(e + 8) & 0xFFFF;
+		int flags = buf.getInt(e + 12);
+		if (length < 16 || e + length > end) {
+			return -1;
+		}
+		if ((flags & HAS_CHILD) != 0 && length < 24) {
+			return -1;
+		}
+		if ((flags & LAST) == 0) {
+			int contentLength = buf.getShort(e + 10) & 0xFFFF;
+			if (contentLength < 66 || 16 + contentLength > length
+					|| 66 + 2 * (buf.get(e + 16 + 64) & 0xFF) > contentLength) {
+				return -1;
+			}
+		}
+		return e;
+	}
+
+	/*
+	 * Compare a name with the one in $FILE_NAME content at c, as the index
+	 * orders them.
+	 */
+	private static int compare(String name, ByteBuffer buf, int c) {
+		int length = buf.get(c + 64) & 0xFF;
+		int n = Math.min(name.length(), length);
+		for (int i = 0; i < n; i++) {
+			char a = Character.toUpperCase(name.charAt(i));
+			char b = Character.toUpperCase(buf.getChar(c + 66 + 2 * i));
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return name.length() - length;
+	}
+}
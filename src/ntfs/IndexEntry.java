@@ -0,0 +1,101 @@
+package ntfs;
+
+import java.nio.ByteBuffer;
+
+/**
+ * One entry of a directory's $I30 index: a file reference and a copy of
+ * the file's $FILE_NAME content, as the directory holds it. The sizes and
+ * times are those of the last time the name was updated, which may lag
+ * the entry's own.
+ */
+public class IndexEntry {
+	private final long reference;
+	private final long parentReference;
+	private final long created;
+	private final long modified;
+	private final long mftModified;
+	private final long accessed;
+	private final long allocatedSize;
+	private final long actualSize;
+	private final int flags;
+	private final int nameSpace;
+	private final String name;
+
+	/**
+	 * @param c the offset of the $FILE_NAME content (Carrier p. 362)
+	 */
+	IndexEntry(long reference, ByteBuffer buf, int c) {
+		this.reference = reference;
+		parentReference = buf.getLong(c);
+		created = buf.getLong(c + 8);
+		modified = buf.getLong(c + 16);
+		mftModified = buf.getLong(c + 24);
+		accessed = buf.getLong(c + 32);
+		allocatedSize = buf.getLong(c + 40);
+		actualSize = buf.getLong(c + 48);
+		flags = buf.getInt(c + 56);
+		int length = buf.get(c + 64) & 0xFF;
+		nameSpace = buf.get(c + 65) & 0xFF;
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = buf.getChar(c + 66 + 2 * i);
+		}
+		name = new String(chars);
+	}
+
+	/**
+	 * @return the file's reference (entry number in the low 48 bits,
+	 * sequence number in the high 16)
+	 */
+	public long getReference() {
+		return reference;
+	}
+
+	public long getEntryNumber() {
+		return reference & 0xFFFFFFFFFFFFL;
+	}
+
+	public long getParentReference() {
+		return parentReference;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public long getMftModified() {
+		return mftModified;
+	}
+
+	public long getAccessed() {
+		return accessed;
+	}
+
+	public long getAllocatedSize() {
+		return allocatedSize;
+	}
+
+	public long getActualSize() {
+		return actualSize;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	/**
+	 * @return MftRecord.POSIX_NAMESPACE, WIN32_NAMESPACE, DOS_NAMESPACE or
+	 * WIN32_DOS_NAMESPACE
+	 */
+	public int getNameSpace() {
+		return nameSpace;
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -7,8 +7,6 @@ import java.util.Set;
 
 import org.jdom.Element;
 import org.jdom.JDOMException;
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
 import org.jdom.xpath.XPath;
 
 import dex.Differences;
@@ -34,12 +32,27 @@ public class MasterFileTable extends Entry {
 	}
 
 	public Element addMftEntry(String entryAddress, String entryMD5) {
-		Element e =  addElement("entryAddress", "");
+		Element e = createMftEntry(entryAddress, entryMD5);
+		addMftEntry(e);
+		return e;
+	}
+
+	/**
+	 * Create an MFT entry element that is not yet part of any MFT, e.g., so
+	 * that a worker thread can fill it in before it is added in order.
+	 */
+	public static Element createMftEntry(String entryAddress, String entryMD5) {
+		Element e = new Element("entryAddress");
+		e.addContent("");
 		e.setAttribute("address",entryAddress);
 		e.setAttribute("MD5sum",entryMD5);
 		return e;
 	}
 
+	public void addMftEntry(Element entry) {
+		elementSubroot.addContent(entry);
+	}
+
 	private static Map<String, Element> labelEntries(List<Element> mftEntries) {
 		Map<String, Element> map = new LinkedHashMap<String, Element>();		
 		for (Element e : mftEntries) {
@@ -131,10 +144,9 @@ public class MasterFileTable extends Entry {
 		// and the krainin wrapper.  Hence this kludge.  Bad programmer, 
 		// no cookie. 
 		
-		XMLOutputter xmloutputter = new XMLOutputter(Format.getPrettyFormat());
 		Map<String, Element> map = new LinkedHashMap<String, Element>();
 		for (Element e : fields) {
-			map.put(xmloutputter.outputString(e), e);
+			map.put(xml_utils.xml.canonicalString(e), e);
 		}
 		return map;
 	}
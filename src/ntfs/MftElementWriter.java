@@ -0,0 +1,123 @@
+package ntfs;
+
+import org.jdom.Element;
+
+/**
+ * Adds each visited entry to a MasterFileTable as an entryAddress element,
+ * in the form KraininStat used to build from NTFSParser's printed output:
+ * an Att element listing the $STANDARD_INFORMATION and $FILE_NAME
+ * attributes and the run list of each non-resident $DATA attribute,
+ * followed by an element for each of those attributes with its fields.
+ * Other attributes are left out, as before. Given a PathIndex, the writer
+ * also adds each entry's full Path; given the path of one entry, that
+ * entry's.
+ */
+public class MftElementWriter implements MftVisitor {
+	private final MasterFileTable masterFileTable;
+	private PathIndex paths = null;
+	private long pathEntry = -1;
+	private String path;
+	private Element entry;
+	private Element att;
+
+	public MftElementWriter(MasterFileTable masterFileTable) {
+		this.masterFileTable = masterFileTable;
+	}
+
+	public void setPathIndex(PathIndex paths) {
+		this.paths = paths;
+	}
+
+	/**
+	 * Add the path to the entry when it is visited; for a single entry,
+	 * where PathIndex.findPath is cheaper than a whole PathIndex.
+	 */
+	public void setPath(long entryNumber, String path) {
+		pathEntry = entryNumber;
+		this.path = path;
+	}
+
+	public void startEntry(MftRecord record) {
+		String address = Long.toString(record.getNumber());
+		entry = MasterFileTable.createMftEntry(address, "SKIPPING-" + address);
+		att = new Element("Att");
+		entry.addContent(att);
+	}
+
+	public void standardInformation(MftRecord record, long created, long modified, long mftModified, long accessed,
+			int flags, int ownerId) {
+		Element e = addAttribute("STANDARD_INFORMATION", "Resident");
+		addTimes(e, created, modified, mftModified, accessed);
+		addField(e, "Flags", NTFSParser.getFlagString(flags));
+		addField(e, "OwnerID", Integer.toString(ownerId));
+	}
+
+	public void fileName(MftRecord record, long parentReference, long created, long modified, long mftModified,
+			long accessed, long allocatedSize, long actualSize, int flags, int nameSpace, String name) {
+		Element e = addAttribute("FILE_NAME", "Resident");
+		addTimes(e, created, modified, mftModified, accessed);
+		addField(e, "AllocatedSize", Long.toString(allocatedSize));
+		addField(e, "ActualSize", Long.toString(actualSize));
+		addField(e, "Flags", NTFSParser.getFlagString(flags));
+		addField(e, "Name", name);
+	}
+
+	public void residentAttribute(MftRecord record, int type, String name, int content, int size) {
+	}
+
+	public void nonResidentAttribute(MftRecord record, int type, String name, long allocatedSize, long actualSize,
+			long initializedSize, RunList runs) {
+		if (type != MftRecord.DATA || runs == null) {
+			return;
+		}
+		entry.addContent(new Element("DATA"));
+		// one cluster at a time, 0 for sparse clusters, as istat does
+		StringBuilder sb = new StringBuilder();
+		for (int run = 0; run < runs.size(); run++) {
+			for (long l = 0; l < runs.getLength(run); l++) {
+				if (sb.length() > 0) {
+					sb.append(' ');
+				}
+				sb.append(runs.isSparse(run) ? 0 : runs.getLcn(run) + l);
+			}
+		}
+		Element e = new Element("DATA");
+		e.setAttribute("Resident", "Non-Resident");
+		e.addContent(sb.toString());
+		att.addContent(e);
+	}
+
+	public void endEntry(MftRecord record) {
+		if (paths != null && paths.contains(record.getNumber())) {
+			addField(entry, "Path", paths.getPath(record.getNumber()));
+		}
+		else if (path != null && record.getNumber() == pathEntry) {
+			addField(entry, "Path", path);
+		}
+		masterFileTable.addMftEntry(entry);
+		entry = null;
+		att = null;
+	}
+
+	private Element addAttribute(String name, String resident) {
+		Element listed = new Element(name);
+		listed.setAttribute("Resident", resident);
+		att.addContent(listed);
+		Element e = new Element(name);
+		entry.addContent(e);
+		return e;
+	}
+
+	private static void addTimes(Element e, long created, long modified, long mftModified, long accessed) {
+		addField(e, "Created", NTFSParser.getDateString(created));
+		addField(e, "FileModified", NTFSParser.getDateString(modified));
+		addField(e, "MFTModified", NTFSParser.getDateString(mftModified));
+		addField(e, "Accessed", NTFSParser.getDateString(accessed));
+	}
+
+	private static void addField(Element e, String name, String value) {
+		Element field = new Element(name);
+		field.addContent(value);
+		e.addContent(field);
+	}
+}
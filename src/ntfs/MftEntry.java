@@ -0,0 +1,178 @@
+package ntfs;
+
+import java.io.IOException;
+
+/**
+ * One MFT entry as decoded by a scan of the MFT: the record header, the
+ * $STANDARD_INFORMATION times and flags, the best $FILE_NAME, and the size
+ * and runs of the unnamed $DATA attribute. Unlike an MftRecord, which is
+ * reused from entry to entry, an MftEntry keeps its values.
+ *
+ * Times are left as NTFS timestamps (100ns intervals since 1601); see
+ * NTFSParser.getDateString. Fields for attributes the entry lacks are 0,
+ * -1 or null. Attributes held in other entries through an
+ * $ATTRIBUTE_LIST are not followed.
+ */
+public class MftEntry {
+	private final long number;
+	private final int sequence;
+	private final int linkCount;
+	private final int flags;
+	private final long baseReference;
+	private final boolean fixupOk;
+
+	private long created = 0;
+	private long modified = 0;
+	private long mftModified = 0;
+	private long accessed = 0;
+	private int standardFlags = 0;
+
+	private String name = null;
+	private long parentReference = -1;
+
+	private boolean dataResident = false;
+	private long dataSize = -1;
+	private long dataAllocatedSize = -1;
+	private RunList dataRuns = null;
+
+	/**
+	 * Copy what we keep out of a loaded record.
+	 */
+	MftEntry(MftRecord r) {
+		number = r.getNumber();
+		sequence = r.getSequence();
+		linkCount = r.getLinkCount();
+		flags = r.getFlags();
+		baseReference = r.getBaseReference();
+		fixupOk = r.isFixupOk();
+
+		for (int a = r.firstAttribute(); a != -1; a = r.nextAttribute(a)) {
+			int type = r.getAttributeType(a);
+			if (type == MftRecord.STANDARD_INFORMATION && !r.isNonResident(a) && r.getContentSize(a) >= 36) {
+				int c = r.getContentOffset(a);
+				created = r.getLong(c);
+				modified = r.getLong(c + 8);
+				mftModified = r.getLong(c + 16);
+				accessed = r.getLong(c + 24);
+				standardFlags = r.getInt(c + 32);
+			}
+			else if (type == MftRecord.DATA && r.getAttributeNameLength(a) == 0) {
+				if (!r.isNonResident(a)) {
+					dataResident = true;
+					dataSize = r.getContentSize(a);
+					dataAllocatedSize = dataSize;
+				}
+				else if (r.getStartVcn(a) == 0) {
+					dataSize = r.getActualSize(a);
+					dataAllocatedSize = r.getAllocatedSize(a);
+					try {
+						dataRuns = RunList.decode(r.buffer(), r.getRunListOffset(a), a + r.getAttributeLength(a), 0);
+					} catch (IOException e) {
+						dataRuns = null;
+					}
+				}
+			}
+		}
+		int nameAt = NTFSParser.getBestFileName(r);
+		if (nameAt != -1) {
+			StringBuilder sb = new StringBuilder(r.getFileNameLength(nameAt));
+			r.appendFileName(nameAt, sb);
+			name = sb.toString();
+			parentReference = r.getParentReference(nameAt);
+		}
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public int getLinkCount() {
+		return linkCount;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public boolean isInUse() {
+		return (flags & 0x0001) != 0;
+	}
+
+	public boolean isDirectory() {
+		return (flags & 0x0002) != 0;
+	}
+
+	/**
+	 * @return the base entry's file reference, or 0 if this is a base entry
+	 */
+	public long getBaseReference() {
+		return baseReference;
+	}
+
+	/**
+	 * @return false if a sector of the record didn't match its fixup value,
+	 * as when the record was torn by a crash
+	 */
+	public boolean isFixupOk() {
+		return fixupOk;
+	}
+
+	public long getCreated() {
+		return created;
+	}
+
+	public long getModified() {
+		return modified;
+	}
+
+	public long getMftModified() {
+		return mftModified;
+	}
+
+	public long getAccessed() {
+		return accessed;
+	}
+
+	public int getStandardFlags() {
+		return standardFlags;
+	}
+
+	/**
+	 * @return the file's name, preferring the long one to the DOS 8.3 one
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the parent directory's file reference (entry number in the
+	 * low 48 bits, sequence number in the high 16)
+	 */
+	public long getParentReference() {
+		return parentReference;
+	}
+
+	public boolean isDataResident() {
+		return dataResident;
+	}
+
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	public long getDataAllocatedSize() {
+		return dataAllocatedSize;
+	}
+
+	/**
+	 * @return the $DATA attribute's runs; null if it is resident, missing
+	 * or its run list damaged
+	 */
+	public RunList getDataRuns() {
+		return dataRuns;
+	}
+}
@@ -0,0 +1,13 @@
+package ntfs;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * The entries of NTFSParser.scan(). A caller that stops before the end
+ * should close() the iterator, so that a parallel scan stops decoding and
+ * lets its threads go; closing a finished iterator does nothing.
+ */
+public interface MftIterator extends Iterator<MftEntry>, Closeable {
+	void close();
+}
@@ -0,0 +1,296 @@
+package ntfs;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A reusable view of one MFT record, for decoding millions of them without
+ * allocating: fields are read in place, little endian, from a buffer the
+ * record is loaded into, and the same MftRecord is loaded again for the
+ * next entry. Anything taken from it must be copied out before then.
+ *
+ * Attributes are addressed by their offset in the record: start at
+ * firstAttribute(), move on with nextAttribute(), and pass the offset to
+ * the attribute accessors. Resident content is addressed the same way,
+ * from getContentOffset(). Offsets and lengths are checked against the
+ * record's used size, so a damaged record ends its attribute walk early
+ * rather than throwing.
+ */
+public class MftRecord {
+	public static final int STANDARD_INFORMATION = 0x10;
+	public static final int ATTRIBUTE_LIST = 0x20;
+	public static final int FILE_NAME = 0x30;
+	public static final int DATA = 0x80;
+	public static final int INDEX_ROOT = 0x90;
+	public static final int INDEX_ALLOCATION = 0xA0;
+	public static final int BITMAP = 0xB0;
+	public static final int END = 0xFFFFFFFF;
+
+	/** $FILE_NAME namespaces */
+	public static final int POSIX_NAMESPACE = 0;
+	public static final int WIN32_NAMESPACE = 1;
+	public static final int DOS_NAMESPACE = 2;
+	public static final int WIN32_DOS_NAMESPACE = 3;
+
+	private static final int SIGNATURE = 0x454C4946; // "FILE"
+	private static final int IN_USE = 0x0001;
+	private static final int DIRECTORY = 0x0002;
+
+	private final ByteBuffer buffer;
+	private final byte[] bytes;
+	private final int bytesPerSector;
+	private long number = -1;
+	private boolean fixupOk;
+	private int used;
+
+	public MftRecord(int entrySize, int bytesPerSector) {
+		this.bytes = new byte[entrySize];
+		this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		this.bytesPerSector = bytesPerSector;
+	}
+
+	/**
+	 * The array to copy a record's raw bytes into before calling load().
+	 */
+	byte[] array() {
+		return bytes;
+	}
+
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Take the raw bytes in array() as entry number n: check the signature
+	 * and apply the fixups in place.
+	 * @return false if the record has no FILE signature
+	 */
+	boolean load(long n) {
+		number = n;
+		if (buffer.getInt(0) != SIGNATURE) {
+			used = 0;
+			return false;
+		}
+		fixupOk = NTFSParser.applyFixups(buffer, bytesPerSector);
+		used = Math.max(0, Math.min(buffer.getInt(24), bytes.length));
+		return true;
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	/**
+	 * @return false if a sector of the record didn't match its fixup value,
+	 * as when the record was torn by a crash
+	 */
+	public boolean isFixupOk() {
+		return fixupOk;
+	}
+
+	public int getSequence() {
+		return buffer.getShort(16) & 0xFFFF;
+	}
+
+	public int getLinkCount() {
+		return buffer.getShort(18) & 0xFFFF;
+	}
+
+	public int getFlags() {
+		return buffer.getShort(22) & 0xFFFF;
+	}
+
+	public boolean isInUse() {
+		return (getFlags() & IN_USE) != 0;
+	}
+
+	public boolean isDirectory() {
+		return (getFlags() & DIRECTORY) != 0;
+	}
+
+	/**
+	 * @return the base entry's file reference, or 0 if this is a base entry
+	 */
+	public long getBaseReference() {
+		return buffer.getLong(32);
+	}
+
+	/**
+	 * @return the offset of the first attribute, or -1 if there is none
+	 */
+	public int firstAttribute() {
+		return checkAttribute(buffer.getShort(20) & 0xFFFF);
+	}
+
+	/**
+	 * @return the offset of the attribute after the one at offset a, or -1
+	 */
+	public int nextAttribute(int a) {
+		return checkAttribute(a + buffer.getInt(a + 4));
+	}
+
+	/**
+	 * @return the offset of the first attribute of the type with no name,
+	 * or -1
+	 */
+	public int findAttribute(int type) {
+		for (int a = firstAttribute(); a != -1; a = nextAttribute(a)) {
+			if (getAttributeType(a) == type && getAttributeNameLength(a) == 0) {
+				return a;
+			}
+		}
+		return -1;
+	}
+
+	private int checkAttribute(int a) {
+		if (a < 24 || a + 16 > used) {
+			return -1;
+		}
+		int type = buffer.getInt(a);
+		int length = buffer.getInt(a + 4);
+		if (type == END || length < 16 || a + length > used) {
+			return -1;
+		}
+		if (buffer.get(a + 8) != 0) {
+			return (length < 64) ? -1 : a;
+		}
+		int size = getContentSize(a);
+		if (length < 24 || size < 0 || getContentOffset(a) + size > a + length) {
+			return -1;
+		}
+		return a;
+	}
+
+	public int getAttributeType(int a) {
+		return buffer.getInt(a);
+	}
+
+	public int getAttributeLength(int a) {
+		return buffer.getInt(a + 4);
+	}
+
+	public boolean isNonResident(int a) {
+		return buffer.get(a + 8) != 0;
+	}
+
+	/**
+	 * @return the length of the attribute's name in characters
+	 */
+	public int getAttributeNameLength(int a) {
+		return buffer.get(a + 9) & 0xFF;
+	}
+
+	/**
+	 * Append the attribute's name, if any, to sb.
+	 */
+	public void appendAttributeName(int a, StringBuilder sb) {
+		appendChars(a + (buffer.getShort(a + 10) & 0xFFFF), getAttributeNameLength(a), sb);
+	}
+
+	public int getAttributeFlags(int a) {
+		return buffer.getShort(a + 12) & 0xFFFF;
+	}
+
+	public int getAttributeId(int a) {
+		return buffer.getShort(a + 14) & 0xFFFF;
+	}
+
+	/**
+	 * @return the offset in the record of a resident attribute's content
+	 */
+	public int getContentOffset(int a) {
+		return a + (buffer.getShort(a + 20) & 0xFFFF);
+	}
+
+	/**
+	 * @return the size of a resident attribute's content
+	 */
+	public int getContentSize(int a) {
+		return buffer.getInt(a + 16);
+	}
+
+	public long getStartVcn(int a) {
+		return buffer.getLong(a + 16);
+	}
+
+	public long getEndVcn(int a) {
+		return buffer.getLong(a + 24);
+	}
+
+	/**
+	 * @return the offset in the record of a non-resident attribute's run list
+	 */
+	public int getRunListOffset(int a) {
+		return a + (buffer.getShort(a + 32) & 0xFFFF);
+	}
+
+	public long getAllocatedSize(int a) {
+		return buffer.getLong(a + 40);
+	}
+
+	public long getActualSize(int a) {
+		return buffer.getLong(a + 48);
+	}
+
+	public long getInitializedSize(int a) {
+		return buffer.getLong(a + 56);
+	}
+
+	/**
+	 * @return the size of an attribute's content, resident or not
+	 */
+	public long getSize(int a) {
+		return isNonResident(a) ? getActualSize(a) : getContentSize(a);
+	}
+
+	/*
+	 * Content of $FILE_NAME, from its content offset c (Carrier p. 362)
+	 */
+
+	public long getParentReference(int c) {
+		return buffer.getLong(c);
+	}
+
+	public int getFileNameLength(int c) {
+		return buffer.get(c + 64) & 0xFF;
+	}
+
+	public int getFileNameSpace(int c) {
+		return buffer.get(c + 65) & 0xFF;
+	}
+
+	/**
+	 * Append a $FILE_NAME's name to sb.
+	 */
+	public void appendFileName(int c, StringBuilder sb) {
+		appendChars(c + 66, getFileNameLength(c), sb);
+	}
+
+	/**
+	 * Fields at any offset, little endian, for content not covered above
+	 * ($STANDARD_INFORMATION times are at 0, 8, 16 and 24 of its content,
+	 * its flags at 32).
+	 */
+	public byte get(int offset) {
+		return buffer.get(offset);
+	}
+
+	public int getShort(int offset) {
+		return buffer.getShort(offset) & 0xFFFF;
+	}
+
+	public int getInt(int offset) {
+		return buffer.getInt(offset);
+	}
+
+	public long getLong(int offset) {
+		return buffer.getLong(offset);
+	}
+
+	private void appendChars(int offset, int length, StringBuilder sb) {
+		int end = Math.min(offset + 2 * length, bytes.length) - 1;
+		for (int i = offset; i < end; i += 2) {
+			sb.append(buffer.getChar(i));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ntfs;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Walks the MFT, or a stretch of it, in order, for NTFSParser.scanRecords()
+ * and scan(). The $MFT's clusters are mapped extent by extent, in windows of up to
+ * WINDOW_SIZE bytes, and each record is copied from the mapping into one
+ * reused MftRecord, where its fixups are applied; nothing is allocated per
+ * record. Records may straddle windows and extents.
+ *
+ * Use it as a cursor: while (scanner.next()) { scanner.getRecord() ... }
+ */
+public class MftScanner {
+	/** Bytes mapped from the image at a time. */
+	static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long[] extentOffsets;
+	private final long[] extentLengths;
+	private final long imageSize;
+	private final MftRecord record;
+
+	private int extent = 0;
+	private long withinExtent = 0;
+	private MappedByteBuffer window = null;
+	private long nextNumber;
+
+	MftScanner(FileChannel channel, long[][] extents, long firstNumber, int entrySize, int bytesPerSector)
+			throws IOException {
+		this.channel = channel;
+		this.extentOffsets = extents[0];
+		this.extentLengths = extents[1];
+		this.imageSize = channel.size();
+		this.record = new MftRecord(entrySize, bytesPerSector);
+		this.nextNumber = firstNumber;
+	}
+
+	/**
+	 * Load the next record with a FILE signature into getRecord(). Records
+	 * without one (never used, or wiped) are skipped.
+	 * @return false at the end of the MFT, or of a truncated image
+	 */
+	public boolean next() throws IOException {
+		byte[] bytes = record.array();
+		while (true) {
+			int copied = 0;
+			while (copied < bytes.length) {
+				if (window == null || !window.hasRemaining()) {
+					if (!mapNextWindow()) {
+						return false;
+					}
+				}
+				int n = Math.min(bytes.length - copied, window.remaining());
+				window.get(bytes, copied, n);
+				copied += n;
+			}
+			if (record.load(nextNumber++)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * The record next() loaded; the same object each time.
+	 */
+	public MftRecord getRecord() {
+		return record;
+	}
+
+	private boolean mapNextWindow() throws IOException {
+		while (extent < extentOffsets.length && withinExtent >= extentLengths[extent]) {
+			extent++;
+			withinExtent = 0;
+		}
+		if (extent >= extentOffsets.length) {
+			return false;
+		}
+		long position = extentOffsets[extent] + withinExtent;
+		long size = Math.min(Math.min(extentLengths[extent] - withinExtent, WINDOW_SIZE), imageSize - position);
+		if (size <= 0) {
+			return false;
+		}
+		window = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		withinExtent += size;
+		return true;
+	}
+}
@@ -0,0 +1,36 @@
+package ntfs;
+
+/**
+ * Receives the attributes of MFT entries as NTFSParser.visit() and
+ * visitAll() decode them, in the order they appear in each record, between
+ * a startEntry() and an endEntry() for the record. The record is the
+ * scanner's reused MftRecord; it is only valid until the call returns.
+ *
+ * Times are NTFS timestamps (see NTFSParser.getDateString), references are
+ * file references (entry number in the low 48 bits), and names are null
+ * when the attribute has none.
+ */
+public interface MftVisitor {
+	void startEntry(MftRecord record);
+
+	void standardInformation(MftRecord record, long created, long modified, long mftModified, long accessed,
+			int flags, int ownerId);
+
+	void fileName(MftRecord record, long parentReference, long created, long modified, long mftModified,
+			long accessed, long allocatedSize, long actualSize, int flags, int nameSpace, String name);
+
+	/**
+	 * Any other resident attribute, resident $DATA included.
+	 * @param content the offset of its content in the record
+	 */
+	void residentAttribute(MftRecord record, int type, String name, int content, int size);
+
+	/**
+	 * Any non-resident attribute.
+	 * @param runs its run list, or null if that is damaged
+	 */
+	void nonResidentAttribute(MftRecord record, int type, String name, long allocatedSize, long actualSize,
+			long initializedSize, RunList runs);
+
+	void endEntry(MftRecord record);
+}
@@ -0,0 +1,123 @@
+package ntfs;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import dex.Transfer;
+
+/**
+ * Extracts the content of files from an NTFS file system in this JVM, in
+ * the manner of icat: a $DATA attribute of an MFT entry, resident or not,
+ * the unnamed one or an alternate data stream.
+ *
+ * Non-resident content is copied run by run with positional reads from the
+ * image, so one extractor may be shared by several threads. Sparse runs and
+ * anything past the initialized size come out as zeros. Runs that continue
+ * in other entries through an $ATTRIBUTE_LIST are joined up. Compressed
+ * files are not handled; those throw IOException.
+ */
+public class NTFSFileExtractor {
+	/** The Version recorded for files extracted by this class. */
+	public static final String VERSION = "DEX ntfs.NTFSFileExtractor";
+
+	private static final int COMPRESSED = 0x0001;
+
+	private final NTFSParser parser;
+
+	/**
+	 * @param imageFilename the image
+	 * @param offset bytes to the start of the file system
+	 * @throws IOException if there is no NTFS file system there
+	 */
+	public NTFSFileExtractor(String imageFilename, long offset) throws IOException {
+		parser = new NTFSParser(imageFilename, offset);
+	}
+
+	/**
+	 * Write the content of an MFT entry to a file, replacing its contents.
+	 * @param digest updated with the content; may be null
+	 * @return the number of bytes written
+	 */
+	public long extract(long entryNumber, File file, MessageDigest digest) throws IOException {
+		return extract(entryNumber, "", file, digest);
+	}
+
+	/**
+	 * Write one of an MFT entry's data streams to a file, replacing its
+	 * contents.
+	 * @param stream the stream's name; "" for the file's content
+	 * @param digest updated with the content; may be null
+	 * @return the number of bytes written
+	 */
+	public long extract(long entryNumber, String stream, File file, MessageDigest digest) throws IOException {
+		AttributeTable attributes = parser.readAttributes(entryNumber);
+		int i = attributes.find(MftRecord.DATA, stream);
+		if (i == -1) {
+			if (stream.length() == 0) {
+				throw new IOException("Entry " + entryNumber + " has no $DATA attribute");
+			}
+			throw new IOException("Entry " + entryNumber + " has no $DATA stream " + stream);
+		}
+		Transfer transfer = new Transfer(digest);
+		if (!attributes.isNonResident(i)) {
+			byte[] content = attributes.getContent(parser, i);
+			return transfer.copy(new ByteArrayInputStream(content), file, content.length);
+		}
+		return copyNonResident(entryNumber, attributes, i, transfer, file);
+	}
+
+	public void close() throws IOException {
+		parser.close();
+	}
+
+	/*
+	 * Turn the run list into extents of the image and copy them.
+	 */
+	private long copyNonResident(long entryNumber, AttributeTable attributes, int data, Transfer transfer, File file) throws IOException {
+		MftRecord r = attributes.getRecord(data);
+		int a = attributes.getOffset(data);
+		if ((r.getAttributeFlags(a) & COMPRESSED) != 0) {
+			throw new IOException("Entry " + entryNumber + " is compressed; not supported");
+		}
+		if (r.getStartVcn(a) != 0) {
+			throw new IOException("Entry " + entryNumber + " is missing the first part of its $DATA");
+		}
+		// the sizes are only recorded with the first part
+		long allocatedSize = r.getAllocatedSize(a);
+		long actualSize = r.getActualSize(a);
+		long initializedSize = Math.min(r.getInitializedSize(a), actualSize);
+		int clusterSize = parser.getClusterSize();
+
+		RunList runs = attributes.getRunList(data);
+		if (runs.getClusterCount() * clusterSize < Math.min(allocatedSize, actualSize)) {
+			throw new IOException("Entry " + entryNumber + " is missing part of its run list");
+		}
+
+		// read up to the initialized size, then zeros up to the actual size
+		long[] positions = new long[runs.size() + 1];
+		long[] counts = new long[runs.size() + 1];
+		int extents = 0;
+		long done = 0;
+		for (int i = 0; i < runs.size() && done < initializedSize; i++) {
+			long count = Math.min(runs.getLength(i) * clusterSize, initializedSize - done);
+			positions[extents] = runs.isSparse(i) ? -1 : parser.getClusterOffset(runs.getLcn(i));
+			counts[extents++] = count;
+			done += count;
+		}
+		if (actualSize > done) {
+			positions[extents] = -1;
+			counts[extents++] = actualSize - done;
+		}
+		if (extents < positions.length) {
+			long[] p = new long[extents];
+			long[] c = new long[extents];
+			System.arraycopy(positions, 0, p, 0, extents);
+			System.arraycopy(counts, 0, c, 0, extents);
+			positions = p;
+			counts = c;
+		}
+		return transfer.copy(parser.getChannel(), positions, counts, file);
+	}
+}
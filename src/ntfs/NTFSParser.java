@@ -2,12 +2,12 @@ package ntfs;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.LinkedList;
-import java.util.Calendar;
+import java.nio.channels.FileChannel;
+import java.util.NoSuchElementException;
 import java.util.Date;
-import java.util.TimeZone;
 
 /**
  * Class for parsing the MFT for NTFS
@@ -32,7 +32,7 @@ public class NTFSParser {
 	/**
 	 * Bytes to skip at the beginning of the file
 	 */
-	private int m_startBytesToSkip;
+	private long m_startBytesToSkip;
 	
 	/**
 	 * The entry to read as specified in the constructor
@@ -63,13 +63,24 @@ public class NTFSParser {
 	 * Run list for the MFT data (i.e. the table entries). We need this
 	 * to figure out where to look for the other entries
 	 */
-	private LinkedList<Long> m_MFTRunList;
+	private RunList m_MFTRunList;
+
+	/**
+	 * For random access to entries with readRecord(); only set up by the
+	 * filename constructor
+	 */
+	private FileChannel m_channel;
 	
 	/**
 	 * used for saying how many bytes to skip at the beginning of the file before
 	 * we've read the boot sector
 	 */
 	private static final int BYTES_PER_SECTOR = 512;
+
+	/**
+	 * Milliseconds from January 1, 1601 (GMT) to January 1, 1970
+	 */
+	private static final long MILLIS_1601_TO_EPOCH = 11644473600000L;
 	
 	/**
 	 * Constructor for the parser
@@ -85,6 +96,367 @@ public class NTFSParser {
 		m_startBytesToSkip = toSkip;
 		m_entryToRead = entryToRead;
 	}
+
+	/**
+	 * Constructor for a parser that reads entries on demand with readRecord().
+	 * Parses the boot sector and the $MFT entry straight away.
+	 * 
+	 * @param filename the image
+	 * @param toSkip bytes to skip to the start of the file system
+	 * @throws IOException if the image can't be read or has no NTFS $MFT
+	 */
+	public NTFSParser(String filename, long toSkip) throws IOException{
+		m_filename = filename;
+		m_startBytesToSkip = toSkip;
+		m_fileStream = new FileInputStream(filename);
+		try{
+			m_fileStream.skip(toSkip);
+			this.parseBootSector(false);
+			if(m_bytesPerSector <= 0 || m_sectorsPerCluster <= 0 || m_sizeOfEntry <= 0)
+				throw new IOException("Not an NTFS boot sector at byte " + toSkip);
+			m_fileStream.skip(m_MFTStartCluster*m_sectorsPerCluster*m_bytesPerSector - 512);
+			this.parseEntry(false, true);
+		}finally{
+			m_fileStream.close();
+			m_fileStream = null;
+		}
+		if(m_MFTRunList == null)
+			throw new IOException("No run list in the $MFT entry");
+		for(int i=0; i<m_MFTRunList.size(); i++)
+			if(m_MFTRunList.isSparse(i))
+				throw new IOException("Sparse run in the $MFT run list");
+		m_channel = new RandomAccessFile(filename, "r").getChannel();
+		try{
+			joinMFTRunList();
+		}catch(IOException e){
+			m_channel.close();
+			throw e;
+		}
+	}
+
+	/*
+	 * A large, fragmented $MFT may have an $ATTRIBUTE_LIST, with the later
+	 * parts of its $DATA run list in extension entries; the base entry's
+	 * runs then only reach far enough to read those. Join the parts, and
+	 * make sure the runs cover the whole $MFT.
+	 */
+	private void joinMFTRunList() throws IOException{
+		AttributeTable table = readAttributes(0);
+		int data = table.find(MftRecord.DATA, "");
+		if(data == -1 || !table.isNonResident(data))
+			throw new IOException("No non-resident $DATA in the $MFT entry");
+		RunList runs = table.getRunList(data);
+		if(runs.getClusterCount()*getClusterSize() < table.getSize(data))
+			throw new IOException("The $MFT run list ends before the $MFT does (" +
+					runs.getClusterCount()*getClusterSize() + " of " + table.getSize(data) + " bytes)");
+		for(int i=0; i<runs.size(); i++)
+			if(runs.isSparse(i))
+				throw new IOException("Sparse run in the $MFT run list");
+		m_MFTRunList = runs;
+	}
+
+	/**
+	 * Decode every entry of the MFT in order, mapping the $MFT's clusters
+	 * in large windows. Records that don't start with a FILE signature
+	 * (never used, or wiped) are skipped; records that fail their fixup
+	 * check are decoded anyway and say so. The iterator's methods throw a
+	 * RuntimeException around the IOException if a read fails.
+	 * 
+	 * @return the entries, in entry number order
+	 */
+	public MftIterator scan() throws IOException{
+		final MftScanner scanner = scanRecords();
+		return new MftIterator(){
+			private MftEntry next = null;
+			private boolean done = false;
+
+			public boolean hasNext(){
+				if(next == null && !done){
+					try{
+						if(scanner.next())
+							next = new MftEntry(scanner.getRecord());
+						else
+							done = true;
+					}catch(IOException e){
+						throw new RuntimeException(e);
+					}
+				}
+				return next != null;
+			}
+
+			public MftEntry next(){
+				if(!hasNext())
+					throw new NoSuchElementException();
+				MftEntry e = next;
+				next = null;
+				return e;
+			}
+
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+
+			public void close(){
+				done = true;
+				next = null;
+			}
+		};
+	}
+
+	/**
+	 * Like scan(), but decoding on several threads at once: the MFT is cut
+	 * into chunks of consecutive entries, each scanned by a CPU task of an
+	 * Orchestrator, and the entries still come out in entry number order.
+	 * The iterator's threads are let go when it has been read to the end,
+	 * or when it is closed.
+	 * 
+	 * @param threads how many chunks to decode at once
+	 */
+	public MftIterator scan(int threads) throws IOException{
+		return new ParallelMftScan(this, threads);
+	}
+
+	/**
+	 * Like scan(), but without making an object per entry: the scanner
+	 * loads each record in turn into the same MftRecord.
+	 */
+	public MftScanner scanRecords() throws IOException{
+		return scanRecords(0, getEntryCount());
+	}
+
+	/**
+	 * A scanner for count entries from entry number first on. Scanners
+	 * don't share state, so several may run at once.
+	 */
+	public MftScanner scanRecords(long first, long count) throws IOException{
+		return new MftScanner(m_channel, getMFTExtents(first*m_sizeOfEntry, count*m_sizeOfEntry),
+				first, m_sizeOfEntry, m_bytesPerSector);
+	}
+
+	/**
+	 * Decode one entry and pass its attributes to the visitor.
+	 * 
+	 * @throws IOException if the entry is out of range or has no FILE signature
+	 */
+	public void visit(long entryNumber, MftVisitor visitor) throws IOException{
+		accept(readRecord(entryNumber), visitor);
+	}
+
+	/**
+	 * Load one entry into an MftRecord of its own, with a positional read.
+	 * Safe to call from several threads at once.
+	 * 
+	 * @throws IOException if the entry is out of range or has no FILE signature
+	 */
+	public MftRecord readRecord(long entryNumber) throws IOException{
+		if(entryNumber < 0 || entryNumber >= getEntryCount())
+			throw new IOException("Entry number " + entryNumber + " out of range (0-" + (getEntryCount() - 1) + ")");
+		MftRecord record = new MftRecord(m_sizeOfEntry, m_bytesPerSector);
+		ByteBuffer entryBuf = ByteBuffer.wrap(record.array());
+		int clusterSize = getClusterSize();
+		//an entry may span clusters, or share one with other entries
+		long offsetInMFT = entryNumber * m_sizeOfEntry;
+		while(entryBuf.hasRemaining()){
+			long cluster = m_MFTRunList.toLcn(offsetInMFT / clusterSize);
+			if(cluster < 0)
+				throw new IOException("Entry number " + entryNumber + " is not in the $MFT run list");
+			int withinCluster = (int)(offsetInMFT % clusterSize);
+			entryBuf.limit(Math.min(m_sizeOfEntry, entryBuf.position() + clusterSize - withinCluster));
+			long position = getClusterOffset(cluster) + withinCluster;
+			while(entryBuf.hasRemaining()){
+				int n = m_channel.read(entryBuf, position);
+				if(n == -1)
+					throw new IOException("Entry number " + entryNumber + " is past the end of the image");
+				position += n;
+				offsetInMFT += n;
+			}
+			entryBuf.limit(m_sizeOfEntry);
+		}
+		if(!record.load(entryNumber))
+			throw new IOException("Entry number " + entryNumber + " has no FILE signature");
+		return record;
+	}
+
+	/**
+	 * Load one entry's attribute table, with the attributes of any
+	 * extension entries its $ATTRIBUTE_LIST names.
+	 * 
+	 * @throws IOException if the entry or its extensions can't be read
+	 */
+	public AttributeTable readAttributes(long entryNumber) throws IOException{
+		MftRecord r = readRecord(entryNumber);
+		if(!r.isFixupOk())
+			throw new IOException("Entry number " + entryNumber + " failed its fixup check");
+		AttributeTable table = new AttributeTable();
+		table.load(r);
+		table.resolve(this);
+		return table;
+	}
+
+	/**
+	 * Decode every entry in order and pass their attributes to the visitor.
+	 */
+	public void visitAll(MftVisitor visitor) throws IOException{
+		MftScanner scanner = scanRecords();
+		while(scanner.next())
+			accept(scanner.getRecord(), visitor);
+	}
+
+	/**
+	 * Walk a loaded record's attributes, passing each to the visitor
+	 */
+	public static void accept(MftRecord r, MftVisitor visitor){
+		visitor.startEntry(r);
+		StringBuilder sb = new StringBuilder();
+		for(int a = r.firstAttribute(); a != -1; a = r.nextAttribute(a)){
+			int type = r.getAttributeType(a);
+			String name = null;
+			if(r.getAttributeNameLength(a) > 0){
+				sb.setLength(0);
+				r.appendAttributeName(a, sb);
+				name = sb.toString();
+			}
+			if(r.isNonResident(a)){
+				RunList runs;
+				try{
+					runs = RunList.decode(r.buffer(), r.getRunListOffset(a), a + r.getAttributeLength(a), r.getStartVcn(a));
+				}catch(IOException e){
+					runs = null;
+				}
+				visitor.nonResidentAttribute(r, type, name, r.getAllocatedSize(a), r.getActualSize(a),
+						r.getInitializedSize(a), runs);
+				continue;
+			}
+			int c = r.getContentOffset(a);
+			int size = r.getContentSize(a);
+			//see Carrier p. 360 and p. 362 for these layouts
+			if(type == MftRecord.STANDARD_INFORMATION && size >= 48){
+				visitor.standardInformation(r, r.getLong(c), r.getLong(c+8), r.getLong(c+16), r.getLong(c+24),
+						r.getInt(c+32), (size >= 52) ? r.getInt(c+48) : 0);
+			}
+			else if(type == MftRecord.FILE_NAME && size >= 66 && 66 + 2*r.getFileNameLength(c) <= size){
+				sb.setLength(0);
+				r.appendFileName(c, sb);
+				visitor.fileName(r, r.getParentReference(c), r.getLong(c+8), r.getLong(c+16), r.getLong(c+24),
+						r.getLong(c+32), r.getLong(c+40), r.getLong(c+48), r.getInt(c+56), r.getFileNameSpace(c),
+						sb.toString());
+			}
+			else{
+				visitor.residentAttribute(r, type, name, c, size);
+			}
+		}
+		visitor.endEntry(r);
+	}
+
+	/**
+	 * @return the number of entries the $MFT's clusters have room for
+	 */
+	public long getEntryCount(){
+		return m_MFTRunList.getClusterCount()*getClusterSize()/m_sizeOfEntry;
+	}
+
+	/**
+	 * The part of the $MFT from byte start for length bytes, with
+	 * contiguous runs merged, as image byte offsets and lengths:
+	 * {offsets, lengths}
+	 */
+	long[][] getMFTExtents(long start, long length){
+		int clusterSize = getClusterSize();
+		long end = start + length;
+		int count = 0;
+		long[] offsets = new long[m_MFTRunList.size()];
+		long[] lengths = new long[m_MFTRunList.size()];
+		for(int i=0; i<m_MFTRunList.size(); i++){
+			//this run's bytes of the $MFT, clipped to the part we want
+			long runStart = m_MFTRunList.getVcn(i)*clusterSize;
+			long runEnd = runStart + m_MFTRunList.getLength(i)*clusterSize;
+			long from = Math.max(start, runStart);
+			long to = Math.min(end, runEnd);
+			if(from >= to)
+				continue;
+			long offset = getClusterOffset(m_MFTRunList.getLcn(i)) + (from - runStart);
+			if(count > 0 && offset == offsets[count-1] + lengths[count-1]){
+				lengths[count-1] += to - from;
+			}else{
+				offsets[count] = offset;
+				lengths[count] = to - from;
+				count++;
+			}
+		}
+		long[][] extents = new long[2][];
+		extents[0] = new long[count];
+		extents[1] = new long[count];
+		System.arraycopy(offsets, 0, extents[0], 0, count);
+		System.arraycopy(lengths, 0, extents[1], 0, count);
+		return extents;
+	}
+
+	/**
+	 * Put back the last two bytes of each sector of a record from its fixup
+	 * array (Carrier p. 253). The first value in the array is the one that
+	 * should be found at the end of each sector.
+	 * 
+	 * @param record buffer holding the record, positioned anywhere
+	 * @param bytesPerSector
+	 * @return false if a sector didn't end with the expected value
+	 */
+	public static boolean applyFixups(ByteBuffer record, int bytesPerSector){
+		int fixupArrayOffset = (record.get(4) & 0xFF) | (record.get(5) & 0xFF) << 8;
+		int numberFixupEntries = (record.get(6) & 0xFF) | (record.get(7) & 0xFF) << 8;
+		boolean ok = true;
+		for(int i=1; i<numberFixupEntries; i++){
+			int sectorEnd = i*bytesPerSector;
+			int fixup = fixupArrayOffset + 2*i;
+			if(sectorEnd > record.limit() || fixup + 1 >= record.limit())
+				break;
+			if(record.get(sectorEnd-2) != record.get(fixupArrayOffset) ||
+					record.get(sectorEnd-1) != record.get(fixupArrayOffset+1))
+				ok = false;
+			record.put(sectorEnd-2, record.get(fixup));
+			record.put(sectorEnd-1, record.get(fixup+1));
+		}
+		return ok;
+	}
+
+	/**
+	 * @return bytes per cluster, from the boot sector
+	 */
+	public int getClusterSize(){
+		return m_sectorsPerCluster*m_bytesPerSector;
+	}
+
+	/**
+	 * @return bytes per MFT entry, from the boot sector
+	 */
+	public int getEntrySize(){
+		return m_sizeOfEntry;
+	}
+
+	/**
+	 * @return bytes per sector, from the boot sector
+	 */
+	public int getBytesPerSector(){
+		return m_bytesPerSector;
+	}
+
+	/**
+	 * @return the byte offset in the image of a cluster of the file system
+	 */
+	public long getClusterOffset(long cluster){
+		return m_startBytesToSkip + cluster*getClusterSize();
+	}
+
+	/**
+	 * The channel readRecord() uses, for positional reads of file content.
+	 */
+	public FileChannel getChannel(){
+		return m_channel;
+	}
+
+	public void close() throws IOException{
+		if(m_channel != null)
+			m_channel.close();
+	}
 	
 	/**
 	 * Convert from the date format used in the entries to a date string we 
@@ -95,27 +467,9 @@ public class NTFSParser {
 	 */
 	public static String getDateString(long winDate){
 		//winDate is number of 100 nanoseconds from January 1, 1601
-		//divide by 10,000 to get milliseconds
-		//then winDate*10,000 - (milliseconds from epoch back to the 1601 date)
-		//will give us milliseconds to epoch, which we java can handle well
-		
-		//get milliseconds from epoch to 1601 date
-		Calendar cal = Calendar.getInstance();
-		cal.setTimeZone(TimeZone.getTimeZone("GMT"));
-		cal.set(Calendar.YEAR,1601);
-		cal.set(Calendar.MONTH, Calendar.JANUARY);
-		cal.set(Calendar.DAY_OF_MONTH,1);
-		cal.set(Calendar.HOUR, 0);
-		cal.set(Calendar.MINUTE,0);
-		cal.set(Calendar.SECOND,0);
-		cal.set(Calendar.MILLISECOND,0);
-		long millisDiff = Math.abs(cal.getTimeInMillis());
-		
-		//get win date in number of milliseconds since 1601
-		long winDateInMillis = winDate/10000;	
-		
-		//get the epoch milliseconds for the date
-		long epochMillis = winDateInMillis - millisDiff;
+		//divide by 10,000 to get milliseconds, then take away the
+		//milliseconds from 1601 to the epoch, which java can handle well
+		long epochMillis = winDate/10000 - MILLIS_1601_TO_EPOCH;
 		
 		//return a formatted date string
 		return (new Date(epochMillis)).toString();
@@ -128,7 +482,7 @@ public class NTFSParser {
 	 * @param standardInfoFlags flags field from attributes
 	 * @return string containing the flags
 	 */
-	private static String getFlagString(int standardInfoFlags) {
+	static String getFlagString(int standardInfoFlags) {
 		String returnString = "";
 		if((standardInfoFlags & 0x0001) != 0 )
 			returnString += "Read Only ";
@@ -171,18 +525,11 @@ public class NTFSParser {
 	 * @return integer represented by these bytes
 	 */
 	public static int getIntFromBytes(byte[] bytes){
-		//pad the byte array so that we can just use the bytebuffer function
-		//we'll put them in big endian order while we're at it
-		byte[] paddedBytes = new byte[4];
-		for(int i=0; i<4; i++){
-			//if there's a byte to add, add it. otherwise, use 0
-			if(i<bytes.length)
-				paddedBytes[3-i] = bytes[i];
-			else
-				paddedBytes[3-i] = 0;
-				
-		}
-		return ByteBuffer.wrap(paddedBytes).getInt();
+		//shift the bytes in, last (most significant) first
+		int value = 0;
+		for(int i=Math.min(bytes.length, 4)-1; i>=0; i--)
+			value = (value << 8) | (bytes[i] & 0xFF);
+		return value;
 	}
 	
 	/**
@@ -191,81 +538,12 @@ public class NTFSParser {
 	 * what this algorithm is really doing.
 	 * 
 	 * @param entryBuf buffer with position at the start of the run list
+	 * @param end end of the attribute holding the run list
 	 * @return run list
+	 * @throws IOException if the run list is damaged
 	 */
-	private static LinkedList<Long> getRunList(ByteBuffer entryBuf) {
-		LinkedList<Long> runList = new LinkedList<Long>();
-		
-		//offsets are wrt the previous offset
-		long previousClusterOffset = 0;
-		
-		//continue until the break case
-		while(true){
-			//read the byte containing the two lengths we need
-			byte lengths = entryBuf.get();
-			//first nibble is the run offset length
-			int runOffsetLength = (lengths & 0xF0)>>4;
-			//second nibble is the run length length
-			int runLengthLength = (lengths & 0x0F);
-			
-			//get the run length
-			byte[] rl = new byte[runLengthLength];
-			entryBuf.get(rl);
-			long runLength = NTFSParser.getLongFromBytes(rl,false);
-			
-			//condition for termination of the run list
-			if(runLength == 0)
-				break;
-			
-			//get the run offset
-			byte[] ro = new byte[runOffsetLength];
-			entryBuf.get(ro);
-			long runOffset = NTFSParser.getLongFromBytes(ro,true);
-			
-			//convert the offset to an offset from the start of the file system
-			long fsOffset = previousClusterOffset + runOffset;
-			previousClusterOffset = fsOffset;
-			
-			//add each cluster in the run to the run list
-			for(long i=0; i<runLength; i++)
-				runList.add(fsOffset + i);
-		}
-		return runList;
-	}
-
-	/**
-	 * From an array of bytes 8 or shorter, return a byte. This can handle longs
-	 * that are meant to be signed as well. This needs to be specified as
-	 * as parameter so we know whether to pad with 0s or with Fs
-	 * 
-	 * @param bytes array of bytes to get a long from
-	 * @param isSigned whether the value can be negative
-	 * @return
-	 */
-	private static long getLongFromBytes(byte[] bytes, boolean isSigned) {
-		//similar to the getIntFromBytes but we have to pad with Fs instead of 0s
-		//if the number is supposed to be negative
-		
-		//check the last byte to see if it starts with a 1 in binary
-		//(i.e. the entire number is supposed to be negative)
-		//if so, we pad with fs instead of 0s
-		byte padByte = 0;
-		if(isSigned && bytes[bytes.length-1] < 0){
-			padByte = (byte)0xFF;
-		}
-		
-		//pad the byte array so that we can just use the bytebuffer function
-		//we'll put them in big endian order while we're at it
-		byte[] paddedBytes = new byte[8];
-		for(int i=0; i<8; i++){
-			//if there's a byte to add, add it. otherwise, use 0
-			if(i<bytes.length)
-				paddedBytes[7-i] = bytes[i];
-			else
-				paddedBytes[7-i] = padByte;
-				
-		}
-		return ByteBuffer.wrap(paddedBytes).getLong();
+	private static RunList getRunList(ByteBuffer entryBuf, int end) throws IOException {
+		return RunList.decode(entryBuf, entryBuf.position(), end, 0);
 	}
 
 	/**
@@ -345,7 +623,7 @@ public class NTFSParser {
 			int entriesPerCluster = m_sectorsPerCluster*m_bytesPerSector/m_sizeOfEntry;
 			//find out which entry in the run list to use
 	
-			int clusterNumberInList = (int)(m_entryToRead/entriesPerCluster);
+			long clusterNumberInList = m_entryToRead/entriesPerCluster;
 			//find out where in the entry
 			int entryWithinCluster = (int)(m_entryToRead%entriesPerCluster);
 
@@ -354,15 +632,14 @@ public class NTFSParser {
 			//System.out.println("Cluster number in list: " + clusterNumberInList);
 			
 			//check if the cluster is in a valid range
-			if(clusterNumberInList >= m_MFTRunList.size()){
+			//get the cluster number within the file system clusters
+			long fsClusterNumber = m_MFTRunList.toLcn(clusterNumberInList);
+			if(fsClusterNumber < 0){
 				System.err.println("Error. Entry number out of range (0-"+
-						m_MFTRunList.size()*entriesPerCluster+")");
+						m_MFTRunList.getClusterCount()*entriesPerCluster+")");
 				return;
 			}
 			
-			//get the cluster number within the file system clusters
-			long fsClusterNumber = m_MFTRunList.get(clusterNumberInList);
-			
 			//add the initial skip, the skip to cluster, and the skip within cluster
 			long totalByteOffset = m_startBytesToSkip + fsClusterNumber * m_sectorsPerCluster * m_bytesPerSector +
 				entryWithinCluster * m_sizeOfEntry;
@@ -571,24 +848,7 @@ public class NTFSParser {
 		entryBuf.position(entryBuf.position()+2);
 		
 		//perform the fixup
-		entryBuf.position(fixupArrayOffset);
-		for(int i=0; i<numberFixupEntries; i++){
-			//find the end of the ith sector
-			int sectorEnd = (i+1)*m_bytesPerSector;
-			
-			//don't want to try to fixup something that is outside of the valid
-			//entry size
-			if(sectorEnd > m_sizeOfEntry)
-				break;
-			
-			//read the next two bytes so that we can insert them
-			byte first = entryBuf.get();
-			byte second = entryBuf.get();
-			
-			//do the replace
-			entryBuf.put(sectorEnd-2, first);
-			entryBuf.put(sectorEnd-1, second);
-		}
+		NTFSParser.applyFixups(entryBuf, m_bytesPerSector);
 		
 		//print some values from the entry header
 		if(printValues){
@@ -699,25 +959,19 @@ public class NTFSParser {
 						//skip to the runlist
 						entryBuf.position(headerStart + runlistOffset);
 						
-						LinkedList<Long> runList = NTFSParser.getRunList(entryBuf);
+						RunList runList = NTFSParser.getRunList(entryBuf, headerStart + attrLength);
 						
 						if(printValues){
-							//print out the run list nicely
+							//print out the run list nicely, one cluster at a time
+							//with 0 for sparse clusters, as istat does
 							System.out.print("\tRun List: ");
-							int numOnLine = 0;
-							int size = runList.size();
-							int count = 0;
-							for(long l: runList){
-								System.out.print(l+" ");
-								//BRIAN: commented out this formatting 
-//								if(++count < size)
-//									System.out.print(",");
-//								if(++numOnLine == 8 && count < size){
-//									System.out.println("");
-//									System.out.print("\t");
-//									numOnLine = 0;
-//								}
+							StringBuilder sb = new StringBuilder();
+							for(int run=0; run<runList.size(); run++){
+								long lcn = runList.getLcn(run);
+								for(long l=0; l<runList.getLength(run); l++)
+									sb.append(runList.isSparse(run) ? 0 : lcn + l).append(' ');
 							}
+							System.out.print(sb);
 							//BRIAN removed "]"
 							System.out.println("");
 						}
@@ -850,6 +1104,93 @@ public class NTFSParser {
 		
 	}
 
+	/**
+	 * Print one line per MFT entry: number, allocation, type, sequence,
+	 * parent entry, size and full path, tab separated
+	 */
+	private static void scanAll(String filename, long bytesToSkip, int threads){
+		long start = System.currentTimeMillis();
+		long count = 0;
+		try{
+			NTFSParser parser = new NTFSParser(filename, bytesToSkip);
+			try{
+				PathIndex paths = PathIndex.build(parser);
+				StringBuilder sb = new StringBuilder();
+				MftIterator i = (threads > 1) ? parser.scan(threads) : parser.scan();
+				try{
+					while(i.hasNext()){
+						MftEntry e = i.next();
+						sb.setLength(0);
+						sb.append(e.getNumber()).append('\t');
+						sb.append(e.isInUse() ? "a" : "-").append('\t');
+						sb.append(e.isDirectory() ? "d" : "r").append('\t');
+						sb.append(e.getSequence()).append('\t');
+						if(e.getName() != null)
+							sb.append(e.getParentReference() & 0xFFFFFFFFFFFFL);
+						sb.append('\t');
+						sb.append(e.getDataSize()).append('\t');
+						if(paths.contains(e.getNumber()))
+							sb.append(paths.getPath(e.getNumber()));
+						sb.append('\n');
+						System.out.append(sb);
+						count++;
+					}
+				}finally{
+					i.close();
+				}
+				System.out.flush();
+			}finally{
+				parser.close();
+			}
+		}catch(Exception e){
+			System.err.println("Error scanning the MFT: " + e.getMessage());
+			System.exit(-1);
+		}
+		System.err.println("Scanned " + count + " entries in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Print one line per name in a directory's index: entry number, size
+	 * and name, tab separated. DOS 8.3 names are left out.
+	 */
+	private static void listDirectory(String filename, long bytesToSkip, long directory){
+		try{
+			NTFSParser parser = new NTFSParser(filename, bytesToSkip);
+			try{
+				for(IndexEntry e : new DirectoryIndex(parser).list(directory)){
+					if(e.getNameSpace() == MftRecord.DOS_NAMESPACE)
+						continue;
+					System.out.println(e.getEntryNumber() + "\t" + e.getActualSize() + "\t" + e.getName());
+				}
+			}finally{
+				parser.close();
+			}
+		}catch(IOException e){
+			System.err.println("Error listing entry " + directory + ": " + e.getMessage());
+			System.exit(-1);
+		}
+	}
+
+	/**
+	 * @return the content offset of the record's first $FILE_NAME that
+	 * isn't a DOS 8.3 name, or of its 8.3 name if that's all it has, or -1
+	 */
+	static int getBestFileName(MftRecord r){
+		int best = -1;
+		for(int a = r.firstAttribute(); a != -1; a = r.nextAttribute(a)){
+			if(r.getAttributeType(a) != MftRecord.FILE_NAME || r.isNonResident(a) || r.getContentSize(a) < 66)
+				continue;
+			int c = r.getContentOffset(a);
+			if(66 + 2*r.getFileNameLength(c) > r.getContentSize(a))
+				continue;
+			if(r.getFileNameSpace(c) != MftRecord.DOS_NAMESPACE)
+				return c;
+			if(best == -1)
+				best = c;
+		}
+		return best;
+	}
+
 	/**
 	 * Main method. Check the arguments, then create and run a parser
 	 * 
@@ -858,10 +1199,10 @@ public class NTFSParser {
 	public static void main(String[] args){
 		
 		//check that the number of arguments is valid
-		if(args.length != 1 && args.length != 3 && args.length != 5){
+		if(args.length < 1 || args.length > 9){
 			System.err.println("Wrong number of arguments");
 			System.err.println("Takes the following arguments: " +
-					"[-o sectorsToSkip] [-n entryToRead] filename");
+					"[-o sectorsToSkip] [-n entryToRead | -s [-j threads] | -d directoryEntry] filename");
 			System.exit(-1);
 		}
 		
@@ -869,13 +1210,18 @@ public class NTFSParser {
 		String filename = "";
 		int bytesToSkip = 0;
 		long entryToRead = 0;
+		boolean scan = false;
+		int threads = 1;
+		long directory = -1;
 		boolean nextIsSkip = false;
 		boolean nextIsToRead = false;
+		boolean nextIsThreads = false;
+		boolean nextIsDirectory = false;
 		boolean quitWithError = false;
 		for(int i=0; i<args.length; i++){
 			//the last argument is the filename
 			if(i+1 == args.length){
-				if(nextIsSkip || nextIsToRead){
+				if(nextIsSkip || nextIsToRead || nextIsThreads || nextIsDirectory){
 					quitWithError = true;
 					break;
 				}
@@ -901,6 +1247,26 @@ public class NTFSParser {
 					break;
 				}
 			}
+			//try to read the number of threads to scan with
+			else if(nextIsThreads){
+				try{
+					threads = Integer.parseInt(args[i]);
+					nextIsThreads = false;
+				}catch(Exception e){
+					quitWithError = true;
+					break;
+				}
+			}
+			//try to read the directory to list
+			else if(nextIsDirectory){
+				try{
+					directory = Long.parseLong(args[i]);
+					nextIsDirectory = false;
+				}catch(Exception e){
+					quitWithError = true;
+					break;
+				}
+			}
 			//see if the next is sectors to skip
 			else if(args[i].equals("-o")){
 				nextIsSkip = true;
@@ -909,6 +1275,18 @@ public class NTFSParser {
 			else if(args[i].equals("-n")){
 				nextIsToRead = true;
 			}
+			//see if we should list every entry
+			else if(args[i].equals("-s")){
+				scan = true;
+			}
+			//see if the next is the number of threads to scan with
+			else if(args[i].equals("-j")){
+				nextIsThreads = true;
+			}
+			//see if the next is a directory to list
+			else if(args[i].equals("-d")){
+				nextIsDirectory = true;
+			}
 			//not a valid value
 			else{
 				quitWithError = true;
@@ -922,10 +1300,19 @@ public class NTFSParser {
 		if(quitWithError){
 			System.err.println("Ill formatted arguments");
 			System.err.println("Takes the following arguments: " +
-					"[-o sectorsToSkip] [-n entryToRead] filename");
+					"[-o sectorsToSkip] [-n entryToRead | -s [-j threads] | -d directoryEntry] filename");
 			System.exit(-1);
 		}
 		
+		if(scan){
+			scanAll(filename, bytesToSkip, threads);
+			return;
+		}
+		if(directory != -1){
+			listDirectory(filename, bytesToSkip, directory);
+			return;
+		}
+		
 		//open the file
 		FileInputStream stream = null;
 		try{
@@ -0,0 +1,112 @@
+package ntfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import dex.Orchestrator;
+
+/**
+ * The iterator behind NTFSParser.scan(threads). The MFT is cut into chunks
+ * of CHUNK_ENTRIES entries, each decoded by its own MftScanner in a CPU
+ * task; the chunks' entries are handed out in chunk order. At most two
+ * chunks per thread are in flight, so memory stays bounded however large
+ * the MFT is. The threads are let go at the end, on a failure, or when the
+ * iterator is closed.
+ */
+class ParallelMftScan implements MftIterator {
+	/** Entries per chunk; 8 MB of records at the usual 1 KB per entry. */
+	static final int CHUNK_ENTRIES = 8192;
+
+	private final NTFSParser parser;
+	private final Orchestrator orchestrator;
+	private final int inFlight;
+	private final long entryCount;
+	private final LinkedList<Future<List<MftEntry>>> pending = new LinkedList<Future<List<MftEntry>>>();
+
+	private long nextChunkStart = 0;
+	private Iterator<MftEntry> current = Collections.<MftEntry>emptyList().iterator();
+	private boolean done = false;
+
+	ParallelMftScan(NTFSParser parser, int threads) {
+		this.parser = parser;
+		this.orchestrator = new Orchestrator(threads, Orchestrator.getDefaultLimit(Orchestrator.IO));
+		this.inFlight = 2 * Math.max(1, threads);
+		this.entryCount = parser.getEntryCount();
+		fill();
+	}
+
+	/**
+	 * @throws RuntimeException wrapping the exception of a chunk that
+	 * failed
+	 */
+	public boolean hasNext() {
+		while (!current.hasNext() && !done) {
+			if (pending.isEmpty()) {
+				finish();
+				break;
+			}
+			try {
+				current = Orchestrator.get(pending.removeFirst()).iterator();
+			} catch (Exception e) {
+				finish();
+				throw new RuntimeException(e);
+			}
+			fill();
+		}
+		return current.hasNext();
+	}
+
+	public MftEntry next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stop decoding: cancel the chunks in flight and shut the threads down.
+	 */
+	public void close() {
+		if (!done) {
+			finish();
+		}
+		current = Collections.<MftEntry>emptyList().iterator();
+	}
+
+	private void fill() {
+		while (pending.size() < inFlight && nextChunkStart < entryCount) {
+			final long first = nextChunkStart;
+			final long count = Math.min(CHUNK_ENTRIES, entryCount - first);
+			pending.add(orchestrator.submit(Orchestrator.CPU, new Callable<List<MftEntry>>() {
+				public List<MftEntry> call() throws Exception {
+					List<MftEntry> entries = new ArrayList<MftEntry>();
+					MftScanner scanner = parser.scanRecords(first, count);
+					while (scanner.next()) {
+						entries.add(new MftEntry(scanner.getRecord()));
+					}
+					return entries;
+				}
+			}));
+			nextChunkStart += count;
+		}
+	}
+
+	private void finish() {
+		done = true;
+		for (Future<List<MftEntry>> f : pending) {
+			f.cancel(true);
+		}
+		pending.clear();
+		orchestrator.shutdown();
+	}
+}
@@ -0,0 +1,424 @@
+package ntfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The directory tree of an NTFS file system, built from one scan of the
+ * MFT, for full paths and directory listings.
+ *
+ * Each base entry with a $FILE_NAME is kept under its entry number in
+ * primitive arrays: its parent's entry number, its sequence number, flags
+ * and its name (the long one rather than the DOS 8.3 one, from one shared
+ * char pool). Hard links beyond that one name are not indexed. Children are
+ * held in compressed rows (the children of entry e are
+ * children[childStart[e]] up to children[childStart[e+1]]), so a listing
+ * is a slice of one array and a path is a walk up the parent array.
+ *
+ * An entry is an orphan, listed under $OrphanFiles as TSK does, if its
+ * parent is missing, isn't a directory, or has been reused (the sequence
+ * number in the reference doesn't match). An entry whose parents lead
+ * back to itself is an orphan too; the cycle is broken at the entry where
+ * the walk first found it.
+ *
+ * For the path of a single entry, findPath() reads just the entry and its
+ * parents instead of scanning the MFT.
+ */
+public class PathIndex {
+	/** The root directory's entry number. */
+	public static final int ROOT = 5;
+	/** The directory orphans are listed under, as in TSK. */
+	public static final String ORPHAN_DIRECTORY = "$OrphanFiles";
+
+	private static final byte PRESENT = 0x01;
+	private static final byte IN_USE = 0x02;
+	private static final byte DIRECTORY = 0x04;
+	private static final byte ORPHAN = 0x08;
+
+	private final int size;
+	private final byte[] flags;
+	private final int[] parents;
+	private long[] parentReferences;
+	private final short[] sequences;
+	private final int[] nameStarts;
+	private final short[] nameLengths;
+	private char[] names = new char[1 << 16];
+	private int namesUsed = 0;
+
+	private int[] childStart;
+	private int[] children;
+	private int[] orphans;
+
+	private PathIndex(int size) {
+		this.size = size;
+		flags = new byte[size];
+		parents = new int[size];
+		parentReferences = new long[size];
+		sequences = new short[size];
+		nameStarts = new int[size];
+		nameLengths = new short[size];
+	}
+
+	/**
+	 * Scan the MFT and index it.
+	 */
+	public static PathIndex build(NTFSParser parser) throws IOException {
+		long entries = parser.getEntryCount();
+		if (entries > Integer.MAX_VALUE) {
+			throw new IOException("Too many MFT entries to index: " + entries);
+		}
+		PathIndex index = new PathIndex((int)entries);
+		MftScanner scanner = parser.scanRecords();
+		while (scanner.next()) {
+			index.add(scanner.getRecord());
+		}
+		index.link();
+		return index;
+	}
+
+	private void add(MftRecord r) {
+		long number = r.getNumber();
+		if (number >= size || r.getBaseReference() != 0) {
+			return;
+		}
+		int c = NTFSParser.getBestFileName(r);
+		if (c == -1) {
+			return;
+		}
+		int e = (int)number;
+		int length = r.getFileNameLength(c);
+		if (namesUsed + length > names.length) {
+			char[] bigger = new char[Math.max(2 * names.length, namesUsed + length)];
+			System.arraycopy(names, 0, bigger, 0, namesUsed);
+			names = bigger;
+		}
+		for (int i = 0; i < length; i++) {
+			names[namesUsed + i] = (char)r.getShort(c + 66 + 2 * i);
+		}
+		nameStarts[e] = namesUsed;
+		nameLengths[e] = (short)length;
+		namesUsed += length;
+		parentReferences[e] = r.getParentReference(c);
+		sequences[e] = (short)r.getSequence();
+		flags[e] = (byte)(PRESENT | (r.isInUse() ? IN_USE : 0) | (r.isDirectory() ? DIRECTORY : 0));
+	}
+
+	/*
+	 * Resolve each entry's parent reference, break cycles, and lay out the
+	 * child lists.
+	 */
+	private void link() {
+		for (int e = 0; e < size; e++) {
+			parents[e] = -1;
+			if ((flags[e] & PRESENT) == 0 || e == ROOT) {
+				continue;
+			}
+			long reference = parentReferences[e];
+			long p = reference & 0xFFFFFFFFFFFFL;
+			int sequence = (int)(reference >>> 48);
+			if (p < size && (flags[(int)p] & (PRESENT | DIRECTORY)) == (PRESENT | DIRECTORY)
+					&& (sequence == 0 || sequence == (sequences[(int)p] & 0xFFFF)) && p != e) {
+				parents[e] = (int)p;
+			}
+		}
+
+		// walk up from each entry; 1 = on the current walk, 2 = settled
+		byte[] state = new byte[size];
+		int[] walk = new int[64];
+		for (int e = 0; e < size; e++) {
+			if ((flags[e] & PRESENT) == 0 || state[e] != 0) {
+				continue;
+			}
+			int depth = 0;
+			int at = e;
+			while (at != -1 && state[at] == 0) {
+				if (depth == walk.length) {
+					int[] deeper = new int[2 * walk.length];
+					System.arraycopy(walk, 0, deeper, 0, depth);
+					walk = deeper;
+				}
+				walk[depth++] = at;
+				state[at] = 1;
+				int p = parents[at];
+				if (p != -1 && state[p] == 1) {
+					// a cycle: cut it here
+					parents[at] = -1;
+					p = -1;
+				}
+				at = p;
+			}
+			boolean orphaned = (at == -1) ? walk[depth - 1] != ROOT : (flags[at] & ORPHAN) != 0;
+			for (int i = 0; i < depth; i++) {
+				state[walk[i]] = 2;
+				if (orphaned) {
+					flags[walk[i]] |= ORPHAN;
+				}
+			}
+		}
+
+		// compressed child rows, each in entry number order
+		childStart = new int[size + 1];
+		int orphanCount = 0;
+		for (int e = 0; e < size; e++) {
+			if (parents[e] != -1) {
+				childStart[parents[e] + 1]++;
+			}
+			else if ((flags[e] & PRESENT) != 0 && e != ROOT) {
+				orphanCount++;
+			}
+		}
+		for (int e = 0; e < size; e++) {
+			childStart[e + 1] += childStart[e];
+		}
+		children = new int[childStart[size]];
+		orphans = new int[orphanCount];
+		int[] fill = new int[size];
+		orphanCount = 0;
+		for (int e = 0; e < size; e++) {
+			if (parents[e] != -1) {
+				children[childStart[parents[e]] + fill[parents[e]]++] = e;
+			}
+			else if ((flags[e] & PRESENT) != 0 && e != ROOT) {
+				orphans[orphanCount++] = e;
+			}
+		}
+		// only needed until now
+		parentReferences = null;
+	}
+
+	/**
+	 * The path of one entry, as build(parser).getPath(entry) would give it,
+	 * found by reading the entry and its parents one at a time. A cycle of
+	 * parents is broken as if the walk had started at its lowest-numbered
+	 * entry, which is where build() breaks it unless a lower-numbered entry
+	 * outside the cycle leads into it.
+	 * 
+	 * @return the path; null if the entry is an extension entry or has no
+	 * $FILE_NAME
+	 * @throws IOException if the entry itself can't be read
+	 */
+	public static String findPath(NTFSParser parser, long entry) throws IOException {
+		if (entry == ROOT) {
+			return "/";
+		}
+		MftRecord r = parser.readRecord(entry);
+		if (r.getBaseReference() != 0 || NTFSParser.getBestFileName(r) == -1) {
+			return null;
+		}
+		// the walk up, and where each entry is on it
+		List<String> names = new ArrayList<String>();
+		Map<Long, Integer> walk = new HashMap<Long, Integer>();
+		List<Long> parents = new ArrayList<Long>();
+		long at = entry;
+		boolean orphaned = true;
+		while (true) {
+			int c = NTFSParser.getBestFileName(r);
+			StringBuilder sb = new StringBuilder();
+			r.appendFileName(c, sb);
+			walk.put(at, names.size());
+			names.add(sb.toString());
+			long reference = r.getParentReference(c);
+			long p = reference & 0xFFFFFFFFFFFFL;
+			int sequence = (int)(reference >>> 48);
+			parents.add(p);
+			MftRecord parent = (p == at) ? null : readParent(parser, p);
+			if (parent == null || !parent.isDirectory() || (sequence != 0 && sequence != parent.getSequence())) {
+				break;
+			}
+			if (p == ROOT) {
+				orphaned = false;
+				break;
+			}
+			Integer seen = walk.get(p);
+			if (seen != null) {
+				// a cycle: cut it at the entry whose parent is its lowest entry
+				long lowest = p;
+				for (int i = seen; i < names.size(); i++) {
+					lowest = Math.min(lowest, parents.get(i));
+				}
+				for (int i = seen; i < names.size(); i++) {
+					if (parents.get(i) == lowest) {
+						names.subList(i + 1, names.size()).clear();
+						break;
+					}
+				}
+				break;
+			}
+			at = p;
+			r = parent;
+		}
+		StringBuilder path = new StringBuilder();
+		if (orphaned) {
+			path.append('/').append(ORPHAN_DIRECTORY);
+		}
+		for (int i = names.size() - 1; i >= 0; i--) {
+			path.append('/').append(names.get(i));
+		}
+		return path.toString();
+	}
+
+	/*
+	 * A base entry with a $FILE_NAME, as build() indexes them; null if
+	 * there is no such entry.
+	 */
+	private static MftRecord readParent(NTFSParser parser, long entry) {
+		if (entry < 0 || entry >= parser.getEntryCount()) {
+			return null;
+		}
+		try {
+			MftRecord r = parser.readRecord(entry);
+			if (r.getBaseReference() != 0 || NTFSParser.getBestFileName(r) == -1) {
+				return null;
+			}
+			return r;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	public boolean contains(long entry) {
+		return entry >= 0 && entry < size && (flags[(int)entry] & PRESENT) != 0;
+	}
+
+	/**
+	 * @return the entry's name, or null if it isn't indexed
+	 */
+	public String getName(long entry) {
+		if (!contains(entry)) {
+			return null;
+		}
+		return new String(names, nameStarts[(int)entry], nameLengths[(int)entry]);
+	}
+
+	/**
+	 * @return the parent's entry number, or -1 for the root, an orphan at
+	 * the top of its branch, or an entry that isn't indexed
+	 */
+	public long getParent(long entry) {
+		return contains(entry) ? parents[(int)entry] : -1;
+	}
+
+	public boolean isOrphan(long entry) {
+		return contains(entry) && (flags[(int)entry] & ORPHAN) != 0;
+	}
+
+	public boolean isDirectory(long entry) {
+		return contains(entry) && (flags[(int)entry] & DIRECTORY) != 0;
+	}
+
+	public boolean isInUse(long entry) {
+		return contains(entry) && (flags[(int)entry] & IN_USE) != 0;
+	}
+
+	/**
+	 * @return the entry's full path, e.g. /Windows/notepad.exe or
+	 * /$OrphanFiles/lost.txt; "/" for the root; null if it isn't indexed
+	 */
+	public String getPath(long entry) {
+		if (!contains(entry)) {
+			return null;
+		}
+		if (entry == ROOT) {
+			return "/";
+		}
+		StringBuilder sb = new StringBuilder();
+		int top = appendPath((int)entry, sb);
+		if (top != ROOT) {
+			sb.insert(0, "/" + ORPHAN_DIRECTORY);
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Append /name for each entry from the top of the branch down, and
+	 * return the entry at the top.
+	 */
+	private int appendPath(int e, StringBuilder sb) {
+		int length = 0;
+		int top = e;
+		for (int at = e; at != -1 && at != ROOT; at = parents[at]) {
+			length += 1 + nameLengths[at];
+			top = parents[at] == -1 ? at : parents[at];
+		}
+		int start = sb.length();
+		sb.setLength(start + length);
+		int end = start + length;
+		for (int at = e; at != -1 && at != ROOT; at = parents[at]) {
+			end -= nameLengths[at];
+			for (int i = 0; i < nameLengths[at]; i++) {
+				sb.setCharAt(end + i, names[nameStarts[at] + i]);
+			}
+			sb.setCharAt(--end, '/');
+		}
+		return top;
+	}
+
+	/**
+	 * @return the entry numbers of the directory's children, in entry
+	 * number order; empty if it has none or isn't indexed
+	 */
+	public long[] getChildren(long entry) {
+		if (!contains(entry)) {
+			return new long[0];
+		}
+		int from = childStart[(int)entry];
+		long[] result = new long[childStart[(int)entry + 1] - from];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = children[from + i];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the entry numbers of the orphans at the top of their
+	 * branches, the children of $OrphanFiles
+	 */
+	public long[] getOrphans() {
+		long[] result = new long[orphans.length];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = orphans[i];
+		}
+		return result;
+	}
+
+	/**
+	 * @return the entry numbers of everything under the directory, each
+	 * directory followed by its contents
+	 */
+	public long[] getDescendants(long entry) {
+		if (!contains(entry)) {
+			return new long[0];
+		}
+		int[] stack = new int[64];
+		int depth = 0;
+		long[] result = new long[16];
+		int count = 0;
+		stack[depth++] = (int)entry;
+		while (depth > 0) {
+			int e = stack[--depth];
+			if (e != entry) {
+				if (count == result.length) {
+					long[] bigger = new long[2 * result.length];
+					System.arraycopy(result, 0, bigger, 0, count);
+					result = bigger;
+				}
+				result[count++] = e;
+			}
+			// push in reverse so children come out in order
+			for (int i = childStart[e + 1] - 1; i >= childStart[e]; i--) {
+				if (depth == stack.length) {
+					int[] deeper = new int[2 * stack.length];
+					System.arraycopy(stack, 0, deeper, 0, depth);
+					stack = deeper;
+				}
+				stack[depth++] = children[i];
+			}
+		}
+		long[] trimmed = new long[count];
+		System.arraycopy(result, 0, trimmed, 0, count);
+		return trimmed;
+	}
+}
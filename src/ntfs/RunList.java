@@ -0,0 +1,195 @@
+package ntfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The runs of a non-resident attribute (Carrier p. 358) as extents in
+ * primitive arrays: each run's first virtual cluster (VCN) in the
+ * attribute, first logical cluster (LCN) in the file system, and length in
+ * clusters. toLcn() maps a VCN to its LCN by binary search over the runs,
+ * so a run list costs three longs per run however many clusters it covers.
+ */
+public class RunList {
+	/** The LCN of a cluster in a sparse run, which has no storage. */
+	public static final long SPARSE = -1;
+	/** The LCN of a VCN the run list doesn't cover. */
+	public static final long NOT_MAPPED = -2;
+
+	private long[] vcns;
+	private long[] lcns;
+	private long[] lengths;
+	private int count = 0;
+	private final long startVcn;
+
+	RunList(long startVcn) {
+		this.startVcn = startVcn;
+		vcns = new long[4];
+		lcns = new long[4];
+		lengths = new long[4];
+	}
+
+	/**
+	 * Decode a run list from a record.
+	 * @param position where the run list starts
+	 * @param end the end of its attribute
+	 * @param startVcn the attribute's first VCN; 0 unless the attribute
+	 * continues another through an $ATTRIBUTE_LIST
+	 * @throws IOException if the run list is damaged
+	 */
+	public static RunList decode(ByteBuffer record, int position, int end, long startVcn) throws IOException {
+		RunList runs = new RunList(startVcn);
+		long lcn = 0;
+		while (position < end) {
+			int header = record.get(position++) & 0xFF;
+			if (header == 0) {
+				return runs;
+			}
+			int lengthSize = header & 0x0F;
+			int offsetSize = header >> 4;
+			if (lengthSize == 0 || lengthSize > 8 || offsetSize > 8 || position + lengthSize + offsetSize > end) {
+				throw new IOException("Bad run list");
+			}
+			long length = readLittleEndian(record, position, lengthSize, false);
+			position += lengthSize;
+			if (length <= 0) {
+				throw new IOException("Bad run list");
+			}
+			if (offsetSize == 0) {
+				runs.add(SPARSE, length);
+			}
+			else {
+				// offsets are relative to the previous run's
+				lcn += readLittleEndian(record, position, offsetSize, true);
+				position += offsetSize;
+				if (lcn < 0) {
+					throw new IOException("Bad run list");
+				}
+				runs.add(lcn, length);
+			}
+		}
+		throw new IOException("Run list runs past its attribute");
+	}
+
+	void add(long lcn, long length) {
+		if (count == vcns.length) {
+			vcns = grow(vcns);
+			lcns = grow(lcns);
+			lengths = grow(lengths);
+		}
+		vcns[count] = (count == 0) ? startVcn : vcns[count - 1] + lengths[count - 1];
+		lcns[count] = lcn;
+		lengths[count] = length;
+		count++;
+	}
+
+	/**
+	 * Add the runs of the next part of the same attribute, from another
+	 * entry, after these.
+	 * @throws IOException if it doesn't start where these end
+	 */
+	void append(RunList next) throws IOException {
+		if (next.startVcn != getEndVcn()) {
+			throw new IOException("Run list parts leave a gap at VCN " + getEndVcn());
+		}
+		for (int i = 0; i < next.count; i++) {
+			add(next.lcns[i], next.lengths[i]);
+		}
+	}
+
+	private static long[] grow(long[] a) {
+		long[] b = new long[a.length * 2];
+		System.arraycopy(a, 0, b, 0, a.length);
+		return b;
+	}
+
+	/**
+	 * @return the number of runs
+	 */
+	public int size() {
+		return count;
+	}
+
+	public long getVcn(int run) {
+		return vcns[run];
+	}
+
+	/**
+	 * @return the run's first LCN, or SPARSE
+	 */
+	public long getLcn(int run) {
+		return lcns[run];
+	}
+
+	public long getLength(int run) {
+		return lengths[run];
+	}
+
+	public boolean isSparse(int run) {
+		return lcns[run] == SPARSE;
+	}
+
+	public long getStartVcn() {
+		return startVcn;
+	}
+
+	/**
+	 * @return the VCN after the last run's last cluster
+	 */
+	public long getEndVcn() {
+		return (count == 0) ? startVcn : vcns[count - 1] + lengths[count - 1];
+	}
+
+	/**
+	 * @return the number of clusters the runs cover, sparse ones included
+	 */
+	public long getClusterCount() {
+		return getEndVcn() - startVcn;
+	}
+
+	/**
+	 * @return the index of the run holding the VCN, or -1 if none does
+	 */
+	public int find(long vcn) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (vcn < vcns[mid]) {
+				high = mid - 1;
+			}
+			else if (vcn >= vcns[mid] + lengths[mid]) {
+				low = mid + 1;
+			}
+			else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the LCN of the VCN, SPARSE or NOT_MAPPED
+	 */
+	public long toLcn(long vcn) {
+		int run = find(vcn);
+		if (run == -1) {
+			return NOT_MAPPED;
+		}
+		if (lcns[run] == SPARSE) {
+			return SPARSE;
+		}
+		return lcns[run] + (vcn - vcns[run]);
+	}
+
+	private static long readLittleEndian(ByteBuffer buf, int position, int size, boolean signed) {
+		long value = 0;
+		for (int i = size - 1; i >= 0; i--) {
+			value = (value << 8) | (buf.get(position + i) & 0xFF);
+		}
+		if (signed && size < 8 && (buf.get(position + size - 1) & 0x80) != 0) {
+			value |= -1L << (8 * size);
+		}
+		return value;
+	}
+}
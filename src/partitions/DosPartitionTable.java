@@ -0,0 +1,251 @@
+package partitions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a DOS (MBR) partition table, and the chain of extended partition
+ * tables it points to, straight from a disk image.
+ *
+ * The volumes are listed the way mmls lists them: the tables themselves,
+ * each partition (extended containers included), and the unallocated gaps
+ * between them, in order of starting sector. As in mmls, gaps are found
+ * among the partitions only: the tables and extended containers are not
+ * considered, so the Unallocated run before the first partition starts at
+ * sector 0 and overlaps the primary table, and the unused sectors after an
+ * extended table show up as Unallocated. Table volumes have type
+ * PARTITION_TABLE and gaps UNDEFINED; partitions have their type byte.
+ */
+public class DosPartitionTable extends NativePartitionTable {
+	/** The Version recorded for partition tables read by this class. */
+	public static final String VERSION = "DEX partitions.DosPartitionTable";
+
+	public static final int SECTOR_SIZE = 512;
+
+	/** Give up on extended table chains longer than this (or looping). */
+	private static final int MAX_EXTENDED_TABLES = 4096;
+
+	private static final Map<Integer, String> DESCRIPTIONS = new HashMap<Integer, String>();
+	static {
+		String[] names = {
+				"01", "DOS FAT12", "02", "XENIX root", "03", "XENIX /usr",
+				"04", "DOS FAT16", "05", "DOS Extended", "06", "DOS FAT16",
+				"07", "NTFS", "08", "AIX Boot", "09", "AIX Data",
+				"0A", "OS/2 Boot Manager", "0B", "Win95 FAT32", "0C", "Win95 FAT32",
+				"0E", "Win95 FAT16", "0F", "Win95 Extended",
+				"11", "DOS FAT12 Hidden", "14", "DOS FAT16 Hidden", "16", "DOS FAT16 Hidden",
+				"17", "Hidden IFS/HPFS", "1B", "Hidden Win95 FAT32", "1C", "Hidden Win95 FAT32",
+				"1E", "Hidden Win95 FAT16", "42", "Win LVM / Secure FS",
+				"63", "GNU HURD / SysV", "80", "MINIX", "81", "MINIX / Linux",
+				"82", "Linux Swap / Solaris x86", "83", "Linux", "84", "Hibernation",
+				"85", "Linux Extended", "86", "NTFS Volume Set", "87", "NTFS Volume Set",
+				"8E", "Linux Logical Volume Manager",
+				"A5", "FreeBSD", "A6", "OpenBSD", "A7", "NeXTSTEP", "A8", "Mac OS X",
+				"A9", "NetBSD", "AB", "Mac OS X Boot", "AF", "MacOS X HFS",
+				"BE", "Solaris 8 Boot", "BF", "Solaris x86",
+				"EE", "GPT Safety Partition", "EF", "EFI File System",
+				"FB", "VMware File System", "FC", "VMware Swap",
+				"FD", "Linux raid autodetect" };
+		for (int i = 0; i < names.length; i += 2) {
+			DESCRIPTIONS.put(Integer.parseInt(names[i], 16), names[i + 1]);
+		}
+	}
+
+	/** One row of the table: a range of sectors, inclusive. */
+	public static class Slot {
+		public final long start;
+		public final long end;
+		public final int type;
+		public final String description;
+
+		Slot(long start, long end, int type, String description) {
+			this.start = start;
+			this.end = end;
+			this.type = type;
+			this.description = description;
+		}
+	}
+
+	private final List<Slot> primary = new ArrayList<Slot>();
+	private final List<Slot> volumes = new ArrayList<Slot>();
+
+	/**
+	 * @throws IOException if the image cannot be read or has no DOS
+	 * partition table
+	 */
+	public DosPartitionTable(String imageFilename) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(imageFilename, "r");
+		try {
+			FileChannel in = raf.getChannel();
+			long imageSectors = in.size() / SECTOR_SIZE;
+			ByteBuffer mbr = readSectors(in, 0, SECTOR_SIZE, 1);
+			if (mbr == null || !hasSignature(mbr)) {
+				throw new IOException("Not a DOS partition table: " + imageFilename);
+			}
+
+			// the partitions other than extended containers, among which
+			// gaps are found
+			List<Slot> used = new ArrayList<Slot>();
+			volumes.add(table(0, "Primary Table"));
+			List<Slot> extended = new ArrayList<Slot>();
+			for (int i = 0; i < 4; i++) {
+				Slot s = entry(mbr, i, 0);
+				if (s == null) {
+					continue;
+				}
+				primary.add(s);
+				volumes.add(s);
+				if (isExtended(s.type)) {
+					extended.add(s);
+				}
+				else {
+					used.add(s);
+				}
+			}
+			for (Slot container : extended) {
+				readExtended(in, container.start, used);
+			}
+
+			addGaps(used, imageSectors);
+			// mmls order: by start sector, earlier additions first on ties
+			Collections.sort(volumes, new Comparator<Slot>() {
+				public int compare(Slot a, Slot b) {
+					return (a.start < b.start) ? -1 : (a.start == b.start ? 0 : 1);
+				}
+			});
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Every volume, in the manner of mmls.
+	 */
+	public List<Slot> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+
+	/**
+	 * The non-empty entries of the MBR itself, in the manner of fdisk -d.
+	 */
+	public List<Slot> getPrimaryPartitions() {
+		return Collections.unmodifiableList(primary);
+	}
+
+	public String getVersion() {
+		return VERSION;
+	}
+
+	public int getSectorSize() {
+		return SECTOR_SIZE;
+	}
+
+	public void addVolumesTo(PartitionTableEntry partitionTable) {
+		for (Slot s : volumes) {
+			partitionTable.addVolumeEntry(s.start, s.end, s.type, s.description);
+		}
+	}
+
+	public void addPrimaryPartitionsTo(PartitionTableEntry partitionTable) {
+		for (Slot s : primary) {
+			partitionTable.addVolumeEntry(s.start, s.end, s.type, "");
+		}
+	}
+
+	public static boolean isExtended(int type) {
+		return type == 0x05 || type == 0x0F || type == 0x85;
+	}
+
+	public static String getDescription(int type) {
+		String d = DESCRIPTIONS.get(type);
+		return (d == null) ? "Unknown Type" : d;
+	}
+
+	/*
+	 * Walk the chain of extended tables. In each, the first entry is a
+	 * logical partition relative to that table, and the second points to
+	 * the next table relative to the start of the extended partition.
+	 */
+	private void readExtended(FileChannel in, long base, List<Slot> used) throws IOException {
+		Set<Long> seen = new HashSet<Long>();
+		long sector = base;
+		while (seen.add(sector) && seen.size() <= MAX_EXTENDED_TABLES) {
+			ByteBuffer ebr = readSectors(in, sector, SECTOR_SIZE, 1);
+			if (ebr == null || !hasSignature(ebr)) {
+				return;
+			}
+			volumes.add(table(sector, "Extended Table"));
+			Slot next = null;
+			for (int i = 0; i < 4; i++) {
+				int type = ebr.get(446 + 16 * i + 4) & 0xff;
+				if (type == 0) {
+					continue;
+				}
+				if (isExtended(type)) {
+					if (next == null) {
+						next = entry(ebr, i, base);
+					}
+				}
+				else {
+					Slot s = entry(ebr, i, sector);
+					if (s != null) {
+						volumes.add(s);
+						used.add(s);
+					}
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			sector = next.start;
+		}
+	}
+
+	private void addGaps(List<Slot> used, long imageSectors) {
+		List<Slot> sorted = new ArrayList<Slot>(used);
+		Collections.sort(sorted, new Comparator<Slot>() {
+			public int compare(Slot a, Slot b) {
+				return (a.start < b.start) ? -1 : (a.start == b.start ? 0 : 1);
+			}
+		});
+		long next = 0;
+		for (Slot s : sorted) {
+			if (s.start > next) {
+				volumes.add(new Slot(next, s.start - 1, PartitionTableEntry.UNDEFINED, "Unallocated"));
+			}
+			next = Math.max(next, s.end + 1);
+		}
+		if (imageSectors > next) {
+			volumes.add(new Slot(next, imageSectors - 1, PartitionTableEntry.UNDEFINED, "Unallocated"));
+		}
+	}
+
+	private static Slot table(long sector, String description) {
+		return new Slot(sector, sector, PartitionTableEntry.PARTITION_TABLE, description);
+	}
+
+	/*
+	 * The i-th 16-byte entry of a table, with its start relative to base; null
+	 * if the entry is empty.
+	 */
+	private static Slot entry(ByteBuffer table, int i, long base) {
+		int offset = 446 + 16 * i;
+		int type = table.get(offset + 4) & 0xff;
+		long start = table.getInt(offset + 8) & 0xffffffffL;
+		long length = table.getInt(offset + 12) & 0xffffffffL;
+		if (type == 0 || length == 0) {
+			return null;
+		}
+		return new Slot(base + start, base + start + length - 1, type, getDescription(type));
+	}
+}
@@ -0,0 +1,351 @@
+package partitions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import dex.Out;
+
+/**
+ * Reads a GUID Partition Table straight from a disk image, looking at only
+ * the sectors it needs: the protective MBR, the primary and backup headers
+ * and their partition entry arrays.
+ *
+ * Each header and array is checked against its CRC32. The primary is used
+ * if it is good, else the backup; a warning is given if either is bad, and
+ * an IOException thrown if both are. 512- and 4096-byte sectors are tried,
+ * in that order.
+ *
+ * Volumes are listed the way mmls lists them: the protective MBR, the
+ * header and the entry array as PARTITION_TABLE, each partition as
+ * GUID_PARTITION described by its name, and the unallocated gaps. As in
+ * mmls, gaps are found among the partitions only, so the first one
+ * starts at sector 0 and overlaps the tables.
+ */
+public class GuidPartitionTable extends NativePartitionTable {
+	/** The Version recorded for partition tables read by this class. */
+	public static final String VERSION = "DEX partitions.GuidPartitionTable";
+
+	private static final int[] SECTOR_SIZES = { 512, 4096 };
+	private static final long SIGNATURE = 0x5452415020494645L; // "EFI PART"
+	private static final int MIN_HEADER_SIZE = 92;
+	/** Refuse entry arrays larger than this; the usual one is 16KB. */
+	private static final int MAX_ARRAY_SIZE = 1024 * 1024;
+	private static final String UNUSED = "00000000-0000-0000-0000-000000000000";
+
+	private static final Map<String, String> DESCRIPTIONS = new HashMap<String, String>();
+	static {
+		String[] names = {
+				"C12A7328-F81F-11D2-BA4B-00A0C93EC93B", "EFI System",
+				"024DEE41-33E7-11D3-9D69-0008C781F39F", "MBR Partition Scheme",
+				"21686148-6449-6E6F-744E-656564454649", "BIOS Boot",
+				"E3C9E316-0B5C-4DB8-817D-F92DF00215AE", "Microsoft Reserved",
+				"EBD0A0A2-B9E5-4433-87C0-68B6B72699C7", "Microsoft Basic Data",
+				"DE94BBA4-06D1-4D40-A16A-BFD50179D6AC", "Windows Recovery",
+				"0FC63DAF-8483-4772-8E79-3D69D8477DE4", "Linux Filesystem",
+				"0657FD6D-A4AB-43C4-84E5-0933C84B4F4F", "Linux Swap",
+				"E6D6D379-F507-44C2-A23C-238F2A3DF928", "Linux LVM",
+				"A19D880F-05FC-4D3B-A006-743F0F84911E", "Linux RAID",
+				"48465300-0000-11AA-AA11-00306543ECAC", "Apple HFS+",
+				"7C3457EF-0000-11AA-AA11-00306543ECAC", "Apple APFS",
+				"516E7CB4-6ECF-11D6-8FF8-00022D09712B", "FreeBSD Data" };
+		for (int i = 0; i < names.length; i += 2) {
+			DESCRIPTIONS.put(names[i], names[i + 1]);
+		}
+	}
+
+	/** One row of the table: a range of sectors, inclusive. */
+	public static class Slot {
+		public final long start;
+		public final long end;
+		public final int type;
+		public final String description;
+		/** For partitions only; null otherwise. */
+		public final String typeGuid;
+		public final String partitionGuid;
+		public final String name;
+
+		Slot(long start, long end, int type, String description) {
+			this(start, end, type, description, null, null, null);
+		}
+
+		Slot(long start, long end, int type, String description, String typeGuid, String partitionGuid, String name) {
+			this.start = start;
+			this.end = end;
+			this.type = type;
+			this.description = description;
+			this.typeGuid = typeGuid;
+			this.partitionGuid = partitionGuid;
+			this.name = name;
+		}
+	}
+
+	/*
+	 * A header and its entry array, as read from one location.
+	 */
+	private static class Header {
+		long myLba;
+		long alternateLba;
+		long entriesLba;
+		int entryCount;
+		int entrySize;
+		ByteBuffer entries;
+		/** Why the header is no good, or null if it is. */
+		String problem;
+	}
+
+	private int sectorSize;
+	private final List<Slot> partitions = new ArrayList<Slot>();
+	private final List<Slot> volumes = new ArrayList<Slot>();
+
+	/**
+	 * @throws IOException if the image cannot be read or has no usable GPT
+	 */
+	public GuidPartitionTable(String imageFilename) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(imageFilename, "r");
+		try {
+			FileChannel in = raf.getChannel();
+			// keep the problem found at the first size, the likeliest one
+			Header primary = null;
+			for (int size : SECTOR_SIZES) {
+				Header h = readHeader(in, 1, size);
+				if (primary == null || h.problem == null) {
+					primary = h;
+					sectorSize = size;
+				}
+				if (h.problem == null) {
+					break;
+				}
+			}
+			if (primary.problem != null) {
+				// no good primary at either size; look for a backup at the end
+				for (int size : SECTOR_SIZES) {
+					Header backup = readHeader(in, in.size() / size - 1, size);
+					if (backup.problem == null) {
+						sectorSize = size;
+						Out.err("WARNING: primary GPT header unusable (" + primary.problem + "); using the backup.");
+						read(backup, in.size() / sectorSize);
+						return;
+					}
+				}
+				throw new IOException("No usable GUID partition table in " + imageFilename + ": " + primary.problem);
+			}
+
+			Header backup = readHeader(in, primary.alternateLba, sectorSize);
+			if (backup.problem != null) {
+				Out.err("WARNING: backup GPT header unusable (" + backup.problem + ").");
+			}
+			else if (!backup.entries.equals(primary.entries)) {
+				Out.err("WARNING: primary and backup GPT partition entries differ; using the primary.");
+			}
+			read(primary, in.size() / sectorSize);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public String getVersion() {
+		return VERSION;
+	}
+
+	public int getSectorSize() {
+		return sectorSize;
+	}
+
+	/**
+	 * Every volume, in the manner of mmls.
+	 */
+	public List<Slot> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+
+	/**
+	 * The partitions in use, in entry order.
+	 */
+	public List<Slot> getPartitions() {
+		return Collections.unmodifiableList(partitions);
+	}
+
+	public void addVolumesTo(PartitionTableEntry partitionTable) {
+		partitionTable.setSectorSize(sectorSize);
+		for (Slot s : volumes) {
+			add(partitionTable, s);
+		}
+	}
+
+	public void addPrimaryPartitionsTo(PartitionTableEntry partitionTable) {
+		partitionTable.setSectorSize(sectorSize);
+		for (Slot s : partitions) {
+			add(partitionTable, s);
+		}
+	}
+
+	public static String getDescription(String typeGuid) {
+		String d = DESCRIPTIONS.get(typeGuid);
+		return (d == null) ? "Unknown Type" : d;
+	}
+
+	private static void add(PartitionTableEntry partitionTable, Slot s) {
+		VolumeEntry v = partitionTable.addVolumeEntry(s.start, s.end, s.type, s.description);
+		if (s.typeGuid != null) {
+			v.addGuids(s.typeGuid, s.partitionGuid, s.name);
+		}
+	}
+
+	/*
+	 * Build the volume list from a good header.
+	 */
+	private void read(Header header, long imageSectors) {
+		List<Slot> used = new ArrayList<Slot>();
+		volumes.add(new Slot(0, 0, PartitionTableEntry.PARTITION_TABLE, "Safety Table"));
+		// the header and array as they sit at the start of the disk, even
+		// when read from the backup
+		long arraySectors = ((long)header.entryCount * header.entrySize + sectorSize - 1) / sectorSize;
+		volumes.add(new Slot(1, 1, PartitionTableEntry.PARTITION_TABLE, "GPT Header"));
+		long arrayStart = (header.myLba == 1) ? header.entriesLba : 2;
+		volumes.add(new Slot(arrayStart, arrayStart + arraySectors - 1, PartitionTableEntry.PARTITION_TABLE, "Partition Table"));
+
+		ByteBuffer entries = header.entries;
+		for (int i = 0; i < header.entryCount; i++) {
+			int offset = i * header.entrySize;
+			String typeGuid = guid(entries, offset);
+			if (typeGuid.equals(UNUSED)) {
+				continue;
+			}
+			long first = entries.getLong(offset + 32);
+			long last = entries.getLong(offset + 40);
+			if (first < 0 || last < first) {
+				Out.err("WARNING: GPT entry " + i + " has a bad range " + first + "-" + last + "; skipped.");
+				continue;
+			}
+			String name = name(entries, offset + 56, Math.min(72, header.entrySize - 56));
+			String description = (name.length() > 0) ? name : getDescription(typeGuid);
+			Slot s = new Slot(first, last, PartitionTableEntry.GUID_PARTITION, description,
+					typeGuid, guid(entries, offset + 16), name);
+			partitions.add(s);
+			volumes.add(s);
+			used.add(s);
+		}
+
+		Comparator<Slot> byStart = new Comparator<Slot>() {
+			public int compare(Slot a, Slot b) {
+				return (a.start < b.start) ? -1 : (a.start == b.start ? 0 : 1);
+			}
+		};
+		Collections.sort(used, byStart);
+		long next = 0;
+		for (Slot s : used) {
+			if (s.start > next) {
+				volumes.add(new Slot(next, s.start - 1, PartitionTableEntry.UNDEFINED, "Unallocated"));
+			}
+			next = Math.max(next, s.end + 1);
+		}
+		if (imageSectors > next) {
+			volumes.add(new Slot(next, imageSectors - 1, PartitionTableEntry.UNDEFINED, "Unallocated"));
+		}
+		// mmls order: by start sector, earlier additions first on ties
+		Collections.sort(volumes, byStart);
+	}
+
+	/*
+	 * Read and check the header at the given sector, and its entry array.
+	 * Problems are reported in the result, not thrown.
+	 */
+	private static Header readHeader(FileChannel in, long lba, int sectorSize) throws IOException {
+		Header h = new Header();
+		if (lba < 1) {
+			h.problem = "bad location " + lba;
+			return h;
+		}
+		ByteBuffer sector = readSectors(in, lba, sectorSize, 1);
+		if (sector == null) {
+			h.problem = "sector " + lba + " is past the end of the image";
+			return h;
+		}
+		if (sector.getLong(0) != SIGNATURE) {
+			h.problem = "no signature at sector " + lba;
+			return h;
+		}
+		int headerSize = sector.getInt(12);
+		if (headerSize < MIN_HEADER_SIZE || headerSize > sectorSize) {
+			h.problem = "bad header size " + headerSize;
+			return h;
+		}
+		int headerCrc = sector.getInt(16);
+		sector.putInt(16, 0);
+		if (crc(sector, 0, headerSize) != headerCrc) {
+			h.problem = "header CRC mismatch at sector " + lba;
+			return h;
+		}
+		h.myLba = sector.getLong(24);
+		h.alternateLba = sector.getLong(32);
+		h.entriesLba = sector.getLong(72);
+		h.entryCount = sector.getInt(80);
+		h.entrySize = sector.getInt(84);
+		int arrayCrc = sector.getInt(88);
+		if (h.myLba != lba) {
+			h.problem = "header at sector " + lba + " claims to be at " + h.myLba;
+			return h;
+		}
+		if (h.entrySize < 128 || h.entrySize % 8 != 0 || h.entryCount < 0
+				|| (long)h.entryCount * h.entrySize > MAX_ARRAY_SIZE) {
+			h.problem = "bad entry array " + h.entryCount + " x " + h.entrySize;
+			return h;
+		}
+		if (h.entriesLba < 1) {
+			h.problem = "bad entry array location " + h.entriesLba;
+			return h;
+		}
+		int arraySize = h.entryCount * h.entrySize;
+		int arraySectors = (arraySize + sectorSize - 1) / sectorSize;
+		h.entries = readSectors(in, h.entriesLba, sectorSize, arraySectors);
+		if (h.entries == null) {
+			h.problem = "entry array at sector " + h.entriesLba + " is past the end of the image";
+			return h;
+		}
+		h.entries.limit(arraySize);
+		if (crc(h.entries, 0, arraySize) != arrayCrc) {
+			h.problem = "entry array CRC mismatch at sector " + h.entriesLba;
+		}
+		return h;
+	}
+
+	private static int crc(ByteBuffer buf, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(buf.array(), buf.arrayOffset() + offset, length);
+		return (int)crc.getValue();
+	}
+
+	/*
+	 * A GUID in its usual text form; the first three fields are little-endian.
+	 */
+	private static String guid(ByteBuffer buf, int offset) {
+		return String.format("%08X-%04X-%04X-%02X%02X-%02X%02X%02X%02X%02X%02X",
+				buf.getInt(offset), buf.getShort(offset + 4), buf.getShort(offset + 6),
+				buf.get(offset + 8), buf.get(offset + 9), buf.get(offset + 10), buf.get(offset + 11),
+				buf.get(offset + 12), buf.get(offset + 13), buf.get(offset + 14), buf.get(offset + 15));
+	}
+
+	/*
+	 * A UTF-16LE name, up to its first NUL.
+	 */
+	private static String name(ByteBuffer buf, int offset, int length) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i + 1 < length; i += 2) {
+			char c = buf.getChar(offset + i);
+			if (c == 0) {
+				break;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,82 @@
+package partitions;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A partition table read directly from a disk image, rather than from the
+ * output of mmls or fdisk. open() picks the reader for the image's scheme.
+ */
+public abstract class NativePartitionTable {
+	/** The MBR partition type that marks a disk as GPT. */
+	static final int GPT_PROTECTIVE = 0xEE;
+
+	/**
+	 * Read the partition table of an image: GPT if its MBR is protective,
+	 * else DOS.
+	 * @throws IOException if the image cannot be read or has neither
+	 */
+	public static NativePartitionTable open(String imageFilename) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(imageFilename, "r");
+		boolean gpt = false;
+		try {
+			ByteBuffer mbr = readSectors(raf.getChannel(), 0, DosPartitionTable.SECTOR_SIZE, 1);
+			if (mbr != null && hasSignature(mbr)) {
+				for (int i = 0; i < 4; i++) {
+					if ((mbr.get(446 + 16 * i + 4) & 0xff) == GPT_PROTECTIVE) {
+						gpt = true;
+					}
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (gpt) {
+			return new GuidPartitionTable(imageFilename);
+		}
+		return new DosPartitionTable(imageFilename);
+	}
+
+	/** The Version to record for a table read this way. */
+	public abstract String getVersion();
+
+	public abstract int getSectorSize();
+
+	/**
+	 * Add every volume, in the manner of mmls.
+	 */
+	public abstract void addVolumesTo(PartitionTableEntry partitionTable);
+
+	/**
+	 * Add only the partitions themselves, in the manner of fdisk -d.
+	 */
+	public abstract void addPrimaryPartitionsTo(PartitionTableEntry partitionTable);
+
+	static boolean hasSignature(ByteBuffer sector) {
+		return (sector.get(510) & 0xff) == 0x55 && (sector.get(511) & 0xff) == 0xAA;
+	}
+
+	/*
+	 * @return count sectors from the given one, or null if they run past
+	 * the end of the image or the sector is negative
+	 */
+	static ByteBuffer readSectors(FileChannel in, long sector, int sectorSize, int count) throws IOException {
+		// checked before multiplying, so a hostile sector number cannot overflow
+		if (sector < 0 || sector > in.size() / sectorSize - count) {
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(sectorSize * count).order(ByteOrder.LITTLE_ENDIAN);
+		long position = sector * sectorSize;
+		while (buf.hasRemaining()) {
+			int n = in.read(buf, position + buf.position());
+			if (n == -1) {
+				return null;
+			}
+		}
+		buf.clear();
+		return buf;
+	}
+}
@@ -25,6 +25,8 @@ public class PartitionTableEntry extends Entry {
 	private final int DEFAULT_OFFSET = 0;
 	public static final int UNDEFINED  = -1;
 	public static final int PARTITION_TABLE  = -2;
+	/** GPT partitions carry a type GUID rather than a type number. */
+	public static final int GUID_PARTITION  = -3;
 
 	public PartitionTableEntry(Element enclosingElement){
 		elementSubroot= new Element("PartitionTable");
@@ -33,6 +35,10 @@ public class PartitionTableEntry extends Entry {
 		addElement("Offset", Integer.toString(DEFAULT_OFFSET));
 	}
 
+	public void setSectorSize(int size) {
+		elementSubroot.getChild("SectorSize").setText(Integer.toString(size));
+	}
+
 	public void setOffset(int size) {
 		List<Element> l = elementSubroot.getChildren("Offset");
 		assert (l.size() == 1);
@@ -46,10 +52,12 @@ public class PartitionTableEntry extends Entry {
 	 * @param end: volume's end sector
 	 * @param typeNumber: the type of volume by number
 	 * @param description: mmls' english description of the volume type
+	 * @return the new entry
 	 */
-	public void addVolumeEntry(int start, int end, int typeNumber, String description) {
+	public VolumeEntry addVolumeEntry(long start, long end, int typeNumber, String description) {
 		VolumeEntry v = new VolumeEntry(elementSubroot,start,end,typeNumber,description);
 		// TODO Include md5sum of partitions
+		return v;
 	}
 
 	public static String getComparableID(Element e) throws JDOMException {
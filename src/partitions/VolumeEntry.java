@@ -10,16 +10,25 @@ import dex.Entry;
 public class  VolumeEntry extends Entry {
 	
 	
-	public VolumeEntry(Element enclosingElement,int start, int end, int typeid, String description){
+	public VolumeEntry(Element enclosingElement,long start, long end, int typeid, String description){
 		elementSubroot = new Element("Volume");
 		enclosingElement.addContent(elementSubroot);
-		addElement("StartSector", Integer.toString(start));
-		addElement("EndSector", Integer.toString(end));
+		addElement("StartSector", Long.toString(start));
+		addElement("EndSector", Long.toString(end));
 		addElement("Description", description);
 		addElement("Type", Integer.toString(typeid));
 		
 	}
 
+	/**
+	 * Record the identity of a GPT partition.
+	 */
+	public void addGuids(String typeGuid, String partitionGuid, String name) {
+		addElement("TypeGUID", typeGuid);
+		addElement("PartitionGUID", partitionGuid);
+		addElement("Name", name);
+	}
+
 	private static void debug (String s) {
 		System.out.println(s);
 	}
@@ -0,0 +1,58 @@
+package tsk;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for the batch modes of the TSK wrappers, which run one tool
+ * invocation per MFT entry through a dex.Orchestrator.
+ */
+class Batch {
+	/**
+	 * Expand a list such as "5,10-20,64" into individual entry addresses.
+	 */
+	static List<String> parseEntries(String spec) {
+		List<String> entries = new ArrayList<String>();
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.length() == 0) {
+				continue;
+			}
+			int dash = part.indexOf('-');
+			if (dash > 0) {
+				long first = Long.parseLong(part.substring(0, dash).trim());
+				long last = Long.parseLong(part.substring(dash + 1).trim());
+				if (last < first) {
+					throw new NumberFormatException("Empty range " + part);
+				}
+				for (long i = first; i <= last; i++) {
+					entries.add(Long.toString(i));
+				}
+			}
+			else {
+				entries.add(Long.toString(Long.parseLong(part)));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Read entry addresses (or ranges, or comma-separated lists of either)
+	 * from a file, one or more per line.
+	 */
+	static List<String> readEntries(String filename) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(filename));
+		try {
+			for (String line; (line = br.readLine()) != null;) {
+				entries.addAll(parseEntries(line));
+			}
+		} finally {
+			br.close();
+		}
+		return entries;
+	}
+}
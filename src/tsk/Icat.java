@@ -2,25 +2,29 @@ package tsk;
 
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.xpath.XPath;
 
 import dex.Dex;
-import dex.DexVersionException;
 import dex.FileEntry;
+import dex.Orchestrator;
 import dex.Out;
+import dex.ToolRunner;
+import dex.ToolVersions;
 import disk.DiskImageEntry;
+import ntfs.NTFSFileExtractor;
 
 public class Icat {
 	private final static String COMMAND = "icat";	
@@ -29,6 +33,7 @@ public class Icat {
 		if (err!=null) Out.err("\nERROR: "+err);
 
 		Out.err("\nUsage:\njava tsk.Icat [icat options] [OPTIONS] disk_image inode output_file");
+		Out.err("       java tsk.Icat [icat options] [OPTIONS] --entries LIST disk_image output_dir");
 		Out.err("Output the contents of the file in the disk_image at location inode to the");
 		Out.err("given output_file; write dex to stdout.");
 		Out.err("\t[icat options]:");
@@ -40,17 +45,26 @@ public class Icat {
 		Out.err("\t\t--input-dex  INFILE:  read from input dex INFILE; output dex");
 		Out.err("\t\t                      will include all data from INFILE");
 		Out.err("\t\t--output-dex OUTFILE: write DEX to OUTFILE");
+		Out.err("\t\t--entries LIST:       batch mode: extract each inode in LIST, e.g. \"30-90,128\",");
+		Out.err("\t\t                      to output_dir/INODE");
+		Out.err("\t\t--entries-file FILE:  batch mode, reading the LIST from FILE");
+		Out.err("\t\t-j, --threads N:      run at most N extractions at once in batch mode");
+		Out.err("\t\t-n, --native:         extract NTFS files in this JVM instead of running icat");
 		Out.err("\nDex wrapper for icat\nauthor: Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
-	public static void main(String[] args) throws IOException, NoSuchAlgorithmException, DexVersionException, JDOMException {
+	public static void main(String[] args) throws Exception {
 		CmdLineParser parser = new CmdLineParser();
 		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
 		CmdLineParser.Option outputXml = parser.addStringOption("output-dex");
 		CmdLineParser.Option inputXml = parser.addStringOption("input-dex");
 		CmdLineParser.Option offset = parser.addIntegerOption('o',"offset"); 
+		CmdLineParser.Option entriesOption = parser.addStringOption("entries");
+		CmdLineParser.Option entriesFileOption = parser.addStringOption("entries-file");
+		CmdLineParser.Option threadsOption = parser.addIntegerOption('j', "threads");
+		CmdLineParser.Option nativeOption = parser.addBooleanOption('n', "native");
 		
 		try {
 			parser.parse(args);
@@ -64,29 +78,62 @@ public class Icat {
 			usage(null);
 		}
 		
+		int threads = (Integer)parser.getOptionValue(threadsOption, Orchestrator.getDefaultLimit(Orchestrator.IO));
+		List<String> batchEntries = null;
+		try {
+			String entriesSpec = (String)parser.getOptionValue(entriesOption);
+			String entriesFilename = (String)parser.getOptionValue(entriesFileOption);
+			if (entriesSpec != null) {
+				batchEntries = Batch.parseEntries(entriesSpec);
+			}
+			else if (entriesFilename != null) {
+				batchEntries = Batch.readEntries(entriesFilename);
+			}
+		}
+		catch (NumberFormatException e) {
+			usage("Bad entry list: " + e.getMessage());
+		}
+
 		String[] otherArgs = parser.getRemainingArgs();
 		
-		if (otherArgs.length != 3) {
+		if (batchEntries == null && otherArgs.length != 3) {
 			usage("Exactly 3 arguments required.");
 		}
+		if (batchEntries != null && otherArgs.length != 2) {
+			usage("Exactly 2 arguments required with --entries.");
+		}
 		
 		String imageFilename = otherArgs[0];
-		int inode = Integer.parseInt(otherArgs[1]);
-		String outputFilename = otherArgs[2];
+		int inode = 0;
+		String outputFilename = null;
+		String outputDirectory = null;
+		if (batchEntries == null) {
+			inode = Integer.parseInt(otherArgs[1]);
+			outputFilename = otherArgs[2];
+		}
+		else {
+			outputDirectory = otherArgs[1];
+		}
 		int offsetSector = (Integer)parser.getOptionValue(offset, new Integer(0));
-		String commandLine = COMMAND + " -o " + offsetSector + " " + imageFilename + " " + inode;
+		ToolRunner icat = new ToolRunner(COMMAND, "-o", Integer.toString(offsetSector), imageFilename, Integer.toString(inode));
+		String commandLine = icat.getCommandLine();
 
 		if ( !(new File(imageFilename).exists())) {
 			usage("File " + imageFilename + " not found.");
 		}
 		
-		if (new File(outputFilename).exists()) {
+		if (outputFilename != null && new File(outputFilename).exists()) {
 			Out.err("WARNING: File " + outputFilename + " exists and will be overwritten.");
 		}
+		if (outputDirectory != null && !new File(outputDirectory).isDirectory() && !new File(outputDirectory).mkdirs()) {
+			usage("Cannot create directory " + outputDirectory + ".");
+		}
 		
 		Dex evidence = null;
 		String xpathToDiskImage = null;
 		String xpathToEntryAddress = null;
+		long expectedSize = -1;
+		Map<String, Long> mftEntries = null;
 		
 		String inputXmlFilename = (String)parser.getOptionValue(inputXml);
 		if (inputXmlFilename == null) {
@@ -107,13 +154,73 @@ public class Icat {
 				usage("Specified disk image not found in dex INFILE.");
 			}
 			
-			xpathToEntryAddress = "/DEXroot/MasterFileTable/entryAddress[@address=\"" + inode + "\"]";
-			xpath = XPath.newInstance(xpathToEntryAddress);
-			Element f = (Element)xpath.selectSingleNode(evidence.getRoot());
-			if (f == null) {
-				usage("No such entry in DEX MasterFileTable.");
+			if (batchEntries != null) {
+				mftEntries = readMftEntries(evidence);
+				for (String entry : batchEntries) {
+					if (!mftEntries.containsKey(entry)) {
+						usage("No such entry in DEX MasterFileTable: " + entry);
+					}
+				}
+			}
+			else {
+				xpathToEntryAddress = entryAddressXPath(Integer.toString(inode));
+				xpath = XPath.newInstance(xpathToEntryAddress);
+				Element f = (Element)xpath.selectSingleNode(evidence.getRoot());
+				if (f == null) {
+					usage("No such entry in DEX MasterFileTable.");
+				}
+				expectedSize = getActualSize(f);
 			}
 		}
+
+		NTFSFileExtractor extractor = null;
+		if ((Boolean)parser.getOptionValue(nativeOption, Boolean.FALSE)) {
+			try {
+				extractor = new NTFSFileExtractor(imageFilename, offsetSector * 512L);
+			} catch (IOException e) {
+				usage(e.getMessage());
+			}
+		}
+
+		if (batchEntries != null) {
+			String version = NTFSFileExtractor.VERSION;
+			if (extractor == null) {
+				version = ToolVersions.get(COMMAND, "-V");
+				if (!version.contains("Sleuth Kit ver 3.0")) {
+					Out.err("WARNING: version 3.0.x of Sleuth Kit expected.");
+				}
+			}
+			List<Callable<Extraction>> tasks = new ArrayList<Callable<Extraction>>(batchEntries.size());
+			for (String entry : batchEntries) {
+				String filename = new File(outputDirectory, entry).getPath();
+				if (extractor != null) {
+					tasks.add(nativeTask(extractor, entry, filename, ToolRunner.commandLine(Icat.class, args)));
+				}
+				else {
+					long size = (mftEntries == null) ? -1 : mftEntries.get(entry);
+					tasks.add(icatTask(imageFilename, offsetSector, entry, filename, size));
+				}
+			}
+			for (Extraction x : Orchestrator.run(Orchestrator.IO, threads, tasks)) {
+				FileEntry f = new FileEntry(evidence.getRoot());
+				if (inputXmlFilename == null) {
+					f.setParentPointer(xpathToDiskImage);
+				}
+				else {
+					f.setParentPointer(entryAddressXPath(x.inode));
+				}
+				f.addInformationSource(version, x.commandLine);
+				f.addExitStatus(x.exitStatus);
+				f.addFilename(x.filename);
+				f.setMD5sum(x.md5sum);
+			}
+			if (extractor != null) {
+				extractor.close();
+			}
+			writeDex(evidence, (String)parser.getOptionValue(outputXml));
+			return;
+		}
+
 		FileEntry fileEntry = new FileEntry(evidence.getRoot());
 		if (xpathToEntryAddress == null) {
 			fileEntry.setParentPointer(xpathToDiskImage);
@@ -122,36 +229,130 @@ public class Icat {
 			fileEntry.setParentPointer(xpathToEntryAddress);
 		}
 		
-		Process p = Runtime.getRuntime().exec(COMMAND + " -V");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
-		if (!version.contains("Sleuth Kit ver 3.0")) {
-			Out.err("WARNING: version 3.0.x of Sleuth Kit expected.");
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		if (extractor != null) {
+			fileEntry.addInformationSource(NTFSFileExtractor.VERSION, ToolRunner.commandLine(Icat.class, args));
+			try {
+				extractor.extract(inode, new File(outputFilename), md5);
+			} catch (IOException e) {
+				usage(e.getMessage());
+			}
+			extractor.close();
+			fileEntry.addExitStatus(0);
+		}
+		else {
+			String version = ToolVersions.get(COMMAND, "-V");
+			if (!version.contains("Sleuth Kit ver 3.0")) {
+				Out.err("WARNING: version 3.0.x of Sleuth Kit expected.");
+			}
+			
+			fileEntry.addInformationSource(version, commandLine);
+			
+			icat.start();
+			icat.copyTo(new File(outputFilename), expectedSize, md5);
+			icat.finish();
+			icat.recordIn(fileEntry);
 		}
-		
-		fileEntry.addInformationSource(version, commandLine);
-		
-		p = Runtime.getRuntime().exec(commandLine);
-		BufferedInputStream in = new BufferedInputStream(p.getInputStream());
-		FileOutputStream out = new FileOutputStream(new File(outputFilename));
-		byte[] buf = new byte[1024];
-		int len;
-		while ((len = in.read(buf)) > 0) {
-			out.write(buf, 0, len);
-		}
-		in.close();
-		out.close();
 		fileEntry.addFilename(outputFilename);
 		
-		String fileMD5 = Dex.computeMD5(outputFilename);
+		String fileMD5 = Dex.hexEncode(md5.digest());
 		fileEntry.setMD5sum(fileMD5);
 		
-		String xmlOutputFilename = (String)parser.getOptionValue(outputXml);
+		writeDex(evidence, (String)parser.getOptionValue(outputXml));
+	}
+
+	private static void writeDex(Dex evidence, String xmlOutputFilename) throws IOException {
 		if (xmlOutputFilename == null) {
 			evidence.dump(System.out);
 		} else {
 			evidence.dump(new BufferedWriter(new FileWriter(xmlOutputFilename)));
 		}		
 	}
+
+	private static String entryAddressXPath(String inode) {
+		return "/DEXroot/MasterFileTable/entryAddress[@address=\"" + inode + "\"]";
+	}
+
+	/*
+	 * Map each MFT entry address to its file size; one XPath query for all
+	 * of the MFT entries, rather than one per inode.
+	 */
+	private static Map<String, Long> readMftEntries(Dex evidence) throws JDOMException {
+		Map<String, Long> entries = new HashMap<String, Long>();
+		for (Object o : XPath.newInstance("/DEXroot/MasterFileTable/entryAddress").selectNodes(evidence.getRoot())) {
+			Element e = (Element)o;
+			entries.put(e.getAttributeValue("address"), getActualSize(e));
+		}
+		return entries;
+	}
+
+	/*
+	 * The file size istat reported for an MFT entry, used to preallocate the
+	 * output; -1 if there is none.
+	 */
+	private static long getActualSize(Element entryAddress) throws JDOMException {
+		Element size = (Element)XPath.selectSingleNode(entryAddress, ".//ActualSize");
+		if (size == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(size.getTextTrim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** The outcome of extracting one inode in batch mode. */
+	private static class Extraction {
+		String inode;
+		String filename;
+		String commandLine;
+		int exitStatus;
+		String md5sum;
+	}
+
+	private static Callable<Extraction> icatTask(final String imageFilename, final int offsetSector, final String inode, final String filename, final long expectedSize) {
+		return new Callable<Extraction>() {
+			public Extraction call() throws Exception {
+				ToolRunner icat = new ToolRunner(COMMAND, "-o", Integer.toString(offsetSector), imageFilename, inode);
+				MessageDigest md5 = MessageDigest.getInstance("MD5");
+				icat.start();
+				icat.copyTo(new File(filename), expectedSize, md5);
+				Extraction x = new Extraction();
+				x.exitStatus = icat.finish();
+				x.inode = inode;
+				x.filename = filename;
+				x.commandLine = icat.getCommandLine();
+				x.md5sum = Dex.hexEncode(md5.digest());
+				return x;
+			}
+		};
+	}
+
+	/*
+	 * As icatTask, but in this JVM; a file that can't be extracted gets exit
+	 * status 1, as icat would give it. No icat runs, so the command line is
+	 * this wrapper's own.
+	 */
+	private static Callable<Extraction> nativeTask(final NTFSFileExtractor extractor, final String inode, final String filename, final String commandLine) {
+		return new Callable<Extraction>() {
+			public Extraction call() throws Exception {
+				MessageDigest md5 = MessageDigest.getInstance("MD5");
+				Extraction x = new Extraction();
+				try {
+					extractor.extract(Long.parseLong(inode), new File(filename), md5);
+				} catch (IOException e) {
+					Out.err("WARNING: " + e.getMessage());
+					x.exitStatus = 1;
+				}
+				x.inode = inode;
+				x.filename = filename;
+				x.commandLine = commandLine;
+				x.md5sum = Dex.hexEncode(md5.digest());
+				return x;
+			}
+		};
+	}
 	
 	
 }
@@ -2,19 +2,21 @@ package tsk;
 
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.jdom.Element;
 import org.jdom.xpath.XPath;
 
 import dex.Dex;
+import dex.Orchestrator;
 import dex.Out;
+import dex.ToolRunner;
+import dex.ToolVersions;
 import disk.DiskImageEntry;
 import ntfs.MasterFileTable;
 
@@ -25,6 +27,7 @@ public class Istat {
 		if (err!=null) Out.err("\nERROR: "+err);
 
 		Out.err("\nUsage:\njava tsk.istat [istat options] [OPTIONS] disk_image mftentry");
+		Out.err("       java tsk.istat [istat options] [OPTIONS] --entries LIST disk_image");
 		Out.err("Output the DEX format of a particular MFT entry; write dex to stdout.");
 		Out.err("\t[istat options]:");
 		Out.err("\t\t-o offset (in sectors)");
@@ -35,9 +38,13 @@ public class Istat {
 		Out.err("\t\t--input-dex  INFILE:  read from input dex INFILE; output dex");
 		Out.err("\t\t                      will include all data from INFILE");
 		Out.err("\t\t--output-dex OUTFILE: write DEX to OUTFILE");
+		Out.err("\t\t--entries LIST:       batch mode: run istat on each entry in LIST, e.g.");
+		Out.err("\t\t                      \"0-15,64\", and put all of them in one MasterFileTable");
+		Out.err("\t\t--entries-file FILE:  batch mode, reading the LIST from FILE");
+		Out.err("\t\t-j, --threads N:      run at most N istat processes at once in batch mode");
 		Out.err("\nDex wrapper for istat\nauthors: Brian Levine, Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -47,6 +54,9 @@ public class Istat {
 		CmdLineParser.Option outputXml = parser.addStringOption("output-dex");
 		CmdLineParser.Option inputXml = parser.addStringOption("input-dex");
 		CmdLineParser.Option offset = parser.addIntegerOption('o',"offset"); 
+		CmdLineParser.Option entriesOption = parser.addStringOption("entries");
+		CmdLineParser.Option entriesFileOption = parser.addStringOption("entries-file");
+		CmdLineParser.Option threadsOption = parser.addIntegerOption('j', "threads");
 
 		try {
 			parser.parse(args);
@@ -60,20 +70,44 @@ public class Istat {
 			usage(null);
 		}
 		int offsetSector = (Integer)parser.getOptionValue(offset, new Integer(0));
+		int threads = (Integer)parser.getOptionValue(threadsOption, Orchestrator.getDefaultLimit(Orchestrator.IO));
+		String entriesSpec = (String)parser.getOptionValue(entriesOption);
+		String entriesFilename = (String)parser.getOptionValue(entriesFileOption);
+		List<String> batchEntries = null;
+		try {
+			if (entriesSpec != null) {
+				batchEntries = Batch.parseEntries(entriesSpec);
+			}
+			else if (entriesFilename != null) {
+				batchEntries = Batch.readEntries(entriesFilename);
+				entriesSpec = "@" + entriesFilename;
+			}
+		}
+		catch (NumberFormatException e) {
+			usage("Bad entry list: " + e.getMessage());
+		}
+
 		String[] otherArgs = parser.getRemainingArgs();
-		if (otherArgs.length != 2) {
+		if (batchEntries == null && otherArgs.length != 2) {
 			usage("Exactly two command line arguments required.");
 		}
+		if (batchEntries != null && otherArgs.length != 1) {
+			usage("Exactly one command line argument required with --entries.");
+		}
 		String imageFilename = otherArgs[0];
-		String mftEntry =otherArgs[1];
+		String mftEntry = (batchEntries == null) ? otherArgs[1] : entriesSpec;
 
-		String commandLine = COMMAND + " -o " + offsetSector+ " "+imageFilename + " " + mftEntry;
+		// In batch mode, each entry records the istat command line that
+		// produced it; the MasterFileTable records this wrapper's.
+		ToolRunner runner = new ToolRunner(COMMAND, "-o", Integer.toString(offsetSector), imageFilename, mftEntry);
+		String commandLine = (batchEntries == null) ? runner.getCommandLine() : ToolRunner.commandLine(Istat.class, args);
 		Out.err(commandLine+"\n");
 		if ( !(new File(imageFilename).exists())) {
 			usage("File " + imageFilename + " not found.");
 		}
 		
 		Dex evidence = null;
+		String md5sum = null;
 		MasterFileTable masterFileTable = null;
 		String xpathToDiskImage = null;
 		String xpathToPartitionTable = null;
@@ -82,7 +116,7 @@ public class Istat {
 		if (inputXmlFilename == null) {
 			evidence = new Dex();
 			
-			String md5sum = Dex.computeMD5(imageFilename);
+			md5sum = Dex.computeMD5(imageFilename);
 			DiskImageEntry d = new DiskImageEntry(evidence.getRoot(), imageFilename, md5sum);
 			xpathToDiskImage = d.getXPath();
 		}
@@ -90,7 +124,7 @@ public class Istat {
 			evidence = new Dex(inputXmlFilename);
 
 			//TODO look for either a DiskImage or a VolumeFile			
-			String md5sum = Dex.computeMD5(imageFilename);
+			md5sum = Dex.computeMD5(imageFilename);
 			xpathToDiskImage = "/DEXroot/DiskImage[@MD5Sum=\"" + md5sum + "\"]";
 			XPath xpath = XPath.newInstance(xpathToDiskImage);
 			Element e = (Element)xpath.selectSingleNode(evidence.getRoot());
@@ -116,14 +150,28 @@ public class Istat {
 		
 		//Perhaps this info should go inside the entry start tag, not the MFT start tag.
 		//But we are assuming that istat is creating all entry xml in this MFT
-		Process p = Runtime.getRuntime().exec(COMMAND + " -V");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+		String version = ToolVersions.get(COMMAND, "-V");
 		if (!version.contains("Sleuth Kit ver 3.0")) {
 			Out.err("WARNING: version 3.0.x of Sleuth Kit expected.");
 		}
 		masterFileTable.addInformationSource(version, commandLine);
-		exec_command(commandLine);
-		process_exec_output(masterFileTable, mftEntry);
+		if (batchEntries == null) {
+			Element entry = masterFileTable.addMftEntry(mftEntry, "SKIPPING-"+mftEntry);
+			runner.setReplay(version, imageFilename, md5sum);
+			runner.start();
+			IstatParser.parse(runner.getReader(), entry);
+			runner.finish();
+			runner.recordIn(masterFileTable);
+		}
+		else {
+			List<Callable<Element>> tasks = new ArrayList<Callable<Element>>(batchEntries.size());
+			for (String entryAddress : batchEntries) {
+				tasks.add(istatTask(imageFilename, md5sum, version, offsetSector, entryAddress));
+			}
+			for (Element entry : Orchestrator.run(Orchestrator.IO, threads, tasks)) {
+				masterFileTable.addMftEntry(entry);
+			}
+		}
 
 		String outputXmlFilename = (String)parser.getOptionValue(outputXml);
 		if (outputXmlFilename == null) {
@@ -136,89 +184,32 @@ public class Istat {
 
 	}
 
-	static Scanner exec_output;
-	private static void exec_command(String command) {
-		Process p = null;
-		try {
-			p = Runtime.getRuntime().exec(command);
-		} 
-		catch (IOException ex) {
-			ex.printStackTrace();
-		}
-		exec_output = new Scanner(p.getInputStream());
-		//exec_output.useDelimiter("\n");
-
-	}
-
-	private static void process_exec_output(MasterFileTable mftElement,String entryAddress) {
-		Element entry = mftElement.addMftEntry(entryAddress, "SKIPPING-"+entryAddress);
-		Element enclosing = null;
-		exec_output.useDelimiter("\\n");
-		while (exec_output.hasNext(".*")){
-			//MFT Entry Header Values:
-			String pattern="(.*|Att)(Values|ributes):.*";
-			if (exec_output.hasNext(pattern)) {
-				exec_output.next(pattern);
-				System.err.println("value: "+exec_output.match().group(1)+":: ");
-				enclosing = new Element(exec_output.match().group(1).replaceAll("\\s", "").replaceAll("\\$", "") );
-				entry.addContent(enclosing);
-			} else {		
-				//Created:	Thu Oct 23 13:12:59 2003
-				pattern="([\\w\\s]+):(.+\\d \\d\\d\\d\\d)";
-				if (exec_output.hasNext(pattern)) {
-					exec_output.next(pattern);
-					System.err.println("time: "+exec_output.match().group(1)+":: "+exec_output.match().group(2));
-					Element innerElement = new Element(exec_output.match().group(1).replaceAll("\\s", "") );
-					innerElement.addContent(exec_output.match().group(2));
-					enclosing.addContent(innerElement);
-				} else {
-					//Flags: Hidden, System
-					pattern="([^:]+):([^:]+)";
-					if (exec_output.hasNext(pattern)) {
-						exec_output.next(pattern);
-						System.err.println("normal: "+exec_output.match().group(1)+":: "+exec_output.match().group(2));
-						Element innerElement = new Element(exec_output.match().group(1).replaceAll("\\s", "").replaceAll("\\$", "") );
-						innerElement.addContent(exec_output.match().group(2));
-						enclosing.addContent(innerElement);
-					} else {
-						//Parent MFT Entry: 5 	Sequence: 5
-						//Allocated Size: 36352   	Actual Size: 36000
-						pattern="(.+):\\s*(\\d+)\\s(.+):\\s*(.+)";
-						if (exec_output.hasNext(pattern)) {
-							exec_output.next(pattern);
-							System.err.println("double: "+exec_output.match().group(1)+":: "+exec_output.match().group(2)+", "+exec_output.match().group(3)+", "+exec_output.match().group(4));
-							Element innerElement = new Element(exec_output.match().group(1).replaceAll("\\s", "") );
-							innerElement.addContent(exec_output.match().group(2));
-							enclosing.addContent(innerElement);
-							innerElement = new Element(exec_output.match().group(3).replaceAll("\\s", "") );
-							innerElement.addContent(exec_output.match().group(4));
-							enclosing.addContent(innerElement);
-						} else { 
-							//Type: $SECURITY_DESCRIPTOR (80-3)   Name: N/A   Resident   size: 116
-							pattern="Type: \\$(.+)\\(.+Name:\\s+(\\S+)\\s+(.*Resident).+";
-							if (exec_output.hasNext(pattern)) {
-								exec_output.next(pattern);
-								Element innerElement = new Element(exec_output.match().group(1).replaceAll("\\s", "") );
-								//innerElement.addContent(exec_output.match().group(1));
-								//innerElement.setAttribute("Name",exec_output.match().group(2));
-								innerElement.setAttribute("Resident",exec_output.match().group(3));
-								enclosing.addContent(innerElement);
-								System.err.println("type:: "+exec_output.match().group(1));
-								//5339 5340 5341 5342 5343 
-								String runlist = "";
-								while (exec_output.hasNext("([\\d\\s]+)")) {
-									exec_output.next("([\\d\\s]+)");
-									runlist+=exec_output.match().group(1);
-
-								}
-								innerElement.addContent(runlist);
-							} else {
-								System.err.println("UNK: "+exec_output.next());
-							}
-						}
-					}
+	/*
+	 * Run istat on one entry and return the (detached) entry element; each
+	 * entry records its own command line and exit status.
+	 */
+	private static Callable<Element> istatTask(final String imageFilename, final String imageMD5, final String version, final int offsetSector, final String entryAddress) {
+		return new Callable<Element>() {
+			public Element call() throws Exception {
+				Element entry = MasterFileTable.createMftEntry(entryAddress, "SKIPPING-"+entryAddress);
+				ToolRunner runner = new ToolRunner(COMMAND, "-o", Integer.toString(offsetSector), imageFilename, entryAddress);
+				runner.setReplay(version, imageFilename, imageMD5);
+				runner.start();
+				IstatParser.parse(runner.getReader(), entry);
+				int status = runner.finish();
+				Element commandLine = new Element("CommandLine");
+				commandLine.setText(runner.getCommandLine());
+				entry.addContent(commandLine);
+				Element exitStatus = new Element("ExitStatus");
+				exitStatus.setText(Integer.toString(status));
+				entry.addContent(exitStatus);
+				if (runner.isReplayed()) {
+					Element replayed = new Element("Replayed");
+					replayed.setText(runner.getReplayKey());
+					entry.addContent(replayed);
 				}
+				return entry;
 			}
-		}
+		};
 	}
 }
@@ -0,0 +1,173 @@
+package tsk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jdom.Element;
+
+/**
+ * Turns the output of istat into children of an MFT entry element, one line
+ * at a time.
+ *
+ * Each line is classified once, with the same precedence the wrapper has
+ * always used:
+ * <pre>
+ *   MFT Entry Header Values:                            section header
+ *   Created:	Thu Oct 23 13:12:59 2003                  time
+ *   Flags: Hidden, System                               one name and value
+ *   Allocated Size: 36352   	Actual Size: 36000        two names and values
+ *   Type: $DATA (128-3)   Name: $Data   Non-Resident   size: 36000
+ *   5339 5340 5341 5342 5343                            run list of the Type above
+ * </pre>
+ * Lines that fit none of these are skipped. Most lines are classified by
+ * looking at their colons; only the last two forms need a regular
+ * expression, and those are compiled once.
+ */
+class IstatParser {
+	//Parent MFT Entry: 5 	Sequence: 5
+	private static final Pattern DOUBLE = Pattern.compile("(.+):\\s*(\\d+)\\s(.+):\\s*(.+)");
+	//Type: $SECURITY_DESCRIPTOR (80-3)   Name: N/A   Resident   size: 116
+	private static final Pattern TYPE = Pattern.compile("Type: \\$(.+)\\(.+Name:\\s+(\\S+)\\s+(.*Resident).+");
+
+	private final Element entry;
+	private final Matcher doubleMatcher = DOUBLE.matcher("");
+	private final Matcher typeMatcher = TYPE.matcher("");
+
+	/** The current section, to which fields are added. */
+	private Element enclosing = null;
+	/** While reading a run list, the attribute it belongs to. */
+	private Element runListOwner = null;
+	private final StringBuilder runList = new StringBuilder();
+
+	IstatParser(Element entry) {
+		this.entry = entry;
+	}
+
+	/**
+	 * Parse all of the istat output from the reader into the entry.
+	 */
+	static void parse(BufferedReader in, Element entry) throws IOException {
+		IstatParser parser = new IstatParser(entry);
+		for (String line; (line = in.readLine()) != null;) {
+			parser.parseLine(line);
+		}
+		parser.finish();
+	}
+
+	void parseLine(String line) {
+		if (runListOwner != null) {
+			if (isRunList(line)) {
+				runList.append(line);
+				return;
+			}
+			endRunList();
+		}
+
+		int header = Math.max(line.lastIndexOf("Values:"), line.lastIndexOf("ributes:"));
+		if (header >= 0) {
+			enclosing = new Element(line.substring(0, header).replaceAll("\\s", "").replaceAll("\\$", ""));
+			entry.addContent(enclosing);
+			return;
+		}
+
+		int colon = line.indexOf(':');
+		if (colon < 0) {
+			return;
+		}
+		if (colon > 0 && isTime(line, colon)) {
+			addField(line.substring(0, colon).replaceAll("\\s", ""), line.substring(colon + 1));
+			return;
+		}
+		boolean oneColon = line.indexOf(':', colon + 1) < 0;
+		if (oneColon) {
+			if (colon > 0 && colon < line.length() - 1) {
+				addField(line.substring(0, colon).replaceAll("\\s", "").replaceAll("\\$", ""), line.substring(colon + 1));
+			}
+			return;
+		}
+		if (doubleMatcher.reset(line).matches()) {
+			addField(doubleMatcher.group(1).replaceAll("\\s", ""), doubleMatcher.group(2));
+			addField(doubleMatcher.group(3).replaceAll("\\s", ""), doubleMatcher.group(4));
+			return;
+		}
+		if (line.startsWith("Type: $") && typeMatcher.reset(line).matches()) {
+			runListOwner = new Element(typeMatcher.group(1).replaceAll("\\s", ""));
+			runListOwner.setAttribute("Resident", typeMatcher.group(3));
+			parent().addContent(runListOwner);
+		}
+	}
+
+	/**
+	 * End the output; completes a run list that runs to the last line.
+	 */
+	void finish() {
+		if (runListOwner != null) {
+			endRunList();
+		}
+	}
+
+	private void endRunList() {
+		runListOwner.addContent(runList.toString());
+		runList.setLength(0);
+		runListOwner = null;
+	}
+
+	private void addField(String name, String value) {
+		Element e = new Element(name);
+		e.addContent(value);
+		parent().addContent(e);
+	}
+
+	private Element parent() {
+		return (enclosing == null) ? entry : enclosing;
+	}
+
+	/*
+	 * "name: ... d dddd", where the name is word characters and spaces.
+	 */
+	private static boolean isTime(String line, int colon) {
+		for (int i = 0; i < colon; i++) {
+			char c = line.charAt(i);
+			if (!isWordChar(c) && !isSpace(c)) {
+				return false;
+			}
+		}
+		int n = line.length();
+		if (n - colon - 1 < 7) {
+			return false;
+		}
+		return isDigit(line.charAt(n - 6)) && line.charAt(n - 5) == ' '
+				&& isDigit(line.charAt(n - 4)) && isDigit(line.charAt(n - 3))
+				&& isDigit(line.charAt(n - 2)) && isDigit(line.charAt(n - 1));
+	}
+
+	/*
+	 * Digits and spaces only, and not empty.
+	 */
+	private static boolean isRunList(String line) {
+		if (line.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (!isDigit(c) && !isSpace(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isWordChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r';
+	}
+}
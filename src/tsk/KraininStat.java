@@ -2,24 +2,25 @@ package tsk;
 
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.Scanner;
 
 import org.jdom.Element;
 import org.jdom.xpath.XPath;
 
 import dex.Dex;
 import dex.Out;
+import dex.ToolRunner;
 import disk.DiskImageEntry;
 import ntfs.MasterFileTable;
+import ntfs.MftElementWriter;
+import ntfs.NTFSParser;
+import ntfs.PathIndex;
 
 public class KraininStat {
-	private final static String COMMAND = "java ntfs.NTFSParser";	
+	private final static int SECTOR_SIZE = 512;
 
 	private static void usage (String err) {
 		if (err!=null) Out.err("\nERROR: "+err);
@@ -35,9 +36,10 @@ public class KraininStat {
 		Out.err("\t\t--input-dex  INFILE:  read from input dex INFILE; output dex");
 		Out.err("\t\t                      will include all data from INFILE");
 		Out.err("\t\t--output-dex OUTFILE: write DEX to OUTFILE");
+		Out.err("\t\t-p, --paths:          add the entry's full path");
 		Out.err("\nDex wrapper for istat\nauthors: Brian Levine, Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -47,6 +49,7 @@ public class KraininStat {
 		CmdLineParser.Option outputXml = parser.addStringOption("output-dex");
 		CmdLineParser.Option inputXml = parser.addStringOption("input-dex");
 		CmdLineParser.Option offset = parser.addIntegerOption('o',"offset"); 
+		CmdLineParser.Option paths = parser.addBooleanOption('p', "paths");
 
 		try {
 			parser.parse(args);
@@ -67,7 +70,8 @@ public class KraininStat {
 		String imageFilename = otherArgs[0];
 		String mftEntry =otherArgs[1];
 
-		String commandLine = COMMAND + " -o " + offsetSector+ " -n " + mftEntry + " " +imageFilename ;
+		// the parser runs in this JVM, so this command line is the one to rerun
+		String commandLine = ToolRunner.commandLine(KraininStat.class, args);
 		Out.err(commandLine+"\n");
 		if ( !(new File(imageFilename).exists())) {
 			usage("File " + imageFilename + " not found.");
@@ -118,8 +122,24 @@ public class KraininStat {
 		//But we are assuming that istat is creating all entry xml in this MFT
 
 		masterFileTable.addInformationSource("Mike Krainin's MFT Parser", commandLine);
-		exec_command(commandLine);
-		process_exec_output(masterFileTable, mftEntry);
+		try {
+			NTFSParser ntfs = new NTFSParser(imageFilename, (long)offsetSector * SECTOR_SIZE);
+			try {
+				MftElementWriter writer = new MftElementWriter(masterFileTable);
+				long entryNumber = Long.parseLong(mftEntry);
+				if ((Boolean)parser.getOptionValue(paths, Boolean.FALSE)) {
+					writer.setPath(entryNumber, PathIndex.findPath(ntfs, entryNumber));
+				}
+				ntfs.visit(entryNumber, writer);
+			} finally {
+				ntfs.close();
+			}
+		} catch (NumberFormatException e) {
+			usage("Bad MFT entry number: " + mftEntry);
+		} catch (IOException e) {
+			usage(e.getMessage());
+		}
+		masterFileTable.addExitStatus(0);
 
 		String outputXmlFilename = (String)parser.getOptionValue(outputXml);
 		if (outputXmlFilename == null) {
@@ -131,74 +151,4 @@ public class KraininStat {
 		}		
 
 	}
-
-	static Scanner exec_output;
-	private static void exec_command(String command) {
-		Process p = null;
-		try {
-			p = Runtime.getRuntime().exec(command);
-		} 
-		catch (IOException ex) {
-			ex.printStackTrace();
-		}
-		exec_output = new Scanner(p.getInputStream());
-		//exec_output.useDelimiter("\n");
-
-	}
-
-	private static void process_exec_output(MasterFileTable mftElement,String entryAddress) {
-		Element entry = mftElement.addMftEntry(entryAddress, "SKIPPING-"+entryAddress);
-		Element enclosing = null;
-		String pattern= "";
-		String attName = "";
-		Element runListAtt = new Element("Att");
-		String runListResident = "";
-		entry.addContent(runListAtt);
-		exec_output.useDelimiter("\\n");
-		while (exec_output.hasNext(".*")){
-			pattern="Type: (\\$.*) \\(.+Resident Size: (\\d+)";
-			if (exec_output.hasNext(pattern)) {
-				exec_output.next(pattern);
-				attName = exec_output.match().group(1).replaceAll("\\s", "").replaceAll("\\$", "");
-				System.err.println("value: "+attName+"Attribute");
-				enclosing = new Element(attName);
-				entry.addContent(enclosing);
-				Element innerElement = new Element(attName);
-				innerElement.setAttribute("Resident","Resident");
-				runListAtt.addContent(innerElement);
-
-			} else {		
-				pattern="Type: (\\$.*) \\(.+Non-Resident";
-				if (exec_output.hasNext(pattern)) {
-					exec_output.next(pattern);
-					attName = exec_output.match().group(1).replaceAll("\\s", "").replaceAll("\\$", "");
-					System.err.println("value: "+attName+"Attribute");
-					enclosing = new Element(attName);
-					entry.addContent(enclosing);
-					runListResident = "Non-Resident";
-				} else {		
-					pattern="\\tRun List: (.+)";
-					if (exec_output.hasNext(pattern)) {
-						exec_output.next(pattern);
-						Element innerElement = new Element(attName);
-						innerElement.addContent(exec_output.match().group(1));
-						innerElement.setAttribute("Resident",runListResident);
-						runListAtt.addContent(innerElement);
-					} else {		
-						pattern="([^:]+):(.*)";
-						if (exec_output.hasNext(pattern)) {
-							exec_output.next(pattern);
-							String tmp = exec_output.match().group(1).replaceAll("\\s", "");
-							System.err.println("entry found: "+tmp);
-							//System.err.println("time: "+exec_output.match().group(1)+":: "+exec_output.match().group(2));
-							Element innerElement = new Element(tmp);
-							innerElement.addContent(exec_output.match().group(2));
-							enclosing.addContent(innerElement);
-						}
-					}
-				}
-			}
-			System.err.println(entry.getChildren());
-		}
-	}
-}
\ No newline at end of file
+}
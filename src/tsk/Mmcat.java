@@ -1,13 +1,17 @@
 package tsk;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.jdom.Element;
 import org.jdom.xpath.XPath;
@@ -17,7 +21,11 @@ import partitions.VolumeFileEntry;
 import jargs.gnu.CmdLineParser;
 
 import dex.Dex;
+import dex.Orchestrator;
 import dex.Out;
+import dex.ToolRunner;
+import dex.ToolVersions;
+import dex.Transfer;
 
 public class Mmcat {
 	
@@ -25,28 +33,40 @@ public class Mmcat {
 		if (err!=null) Out.err("\nERROR: "+err);
 
 		Out.err("\nUsage:\njava tsk.Mmcat [mmcat options] [OPTIONS] DEXFILE PARTNUM OUTFILE");
+		Out.err("       java tsk.Mmcat --native [OPTIONS] DEXFILE PARTNUM OUTFILE [PARTNUM OUTFILE ...]");
+		Out.err("       java tsk.Mmcat --all [OPTIONS] DEXFILE OUTPREFIX");
 		Out.err("Output the contents of a partition number PARTNUM to OUTFILE.  The partition");
 		Out.err("information is read from the specified DEXFILE.  Write a new DEX to stdout.");
+		Out.err("With --native, copy the partitions from the disk image without running mmcat,");
+		Out.err("several at once. With --all, read the disk image once and write every");
+		Out.err("partition n to OUTPREFIX-n, also without running mmcat.");
 		Out.err("\t[mmcat options]:");
 		Out.err("\t\tno mmcat options are currently supported.");
 		Out.err("");
 		Out.err("\tOPTIONS:");
 		Out.err("\t\t-h, --help:       display this help file");
 		Out.err("\t\t--xml-file FILE:  write DEX to FILE");
+		Out.err("\t\t-n, --native:     extract the partitions in this JVM instead of with mmcat");
+		Out.err("\t\t-j, --threads N:  with --native, copy at most N partitions at once");
+		Out.err("\t\t-a, --all:        extract all partitions in a single pass");
 		Out.err("\nDex wrapper for mmcat\nauthor: Marc Liberatore (c) 2009"); 
 
-		System.exit(1);
+		Out.exit(1);
 	}
 	
 	private final static String COMMAND = "mmcat";
+
+	/** The Version recorded for partitions extracted by this class, not mmcat. */
+	private final static String IN_JVM_VERSION = "DEX tsk.Mmcat in-JVM extraction";
 	
 	public static void main(String[] args) throws Exception {
 		
-		usage("mmcat wrapper currently under evaluation -- please do not use.");
-		
 		CmdLineParser parser = new CmdLineParser();
 		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
 		CmdLineParser.Option xml = parser.addStringOption("xml-file");
+		CmdLineParser.Option allOption = parser.addBooleanOption('a', "all");
+		CmdLineParser.Option nativeOption = parser.addBooleanOption('n', "native");
+		CmdLineParser.Option threadsOption = parser.addIntegerOption('j', "threads");
 		
 		try {
 			parser.parse(args);
@@ -60,37 +80,87 @@ public class Mmcat {
 			usage(null);
 		}
 		
+		boolean all = (Boolean)parser.getOptionValue(allOption, Boolean.FALSE);
+		boolean inJvm = (Boolean)parser.getOptionValue(nativeOption, Boolean.FALSE);
+		int threads = (Integer)parser.getOptionValue(threadsOption, Orchestrator.getDefaultLimit(Orchestrator.IO));
+		
 		String[] otherArgs = parser.getRemainingArgs();
-		if (otherArgs.length != 3) {
-			usage("Exactly three command line arguments required.");
+		if (all) {
+			if (otherArgs.length != 2) {
+				usage("Exactly two command line arguments required with --all.");
+			}
+		}
+		else if (inJvm) {
+			if (otherArgs.length < 3 || otherArgs.length % 2 == 0) {
+				usage("DEXFILE and one or more PARTNUM OUTFILE pairs required with --native.");
+			}
+		}
+		else {
+			usage("mmcat wrapper currently under evaluation -- please do not use.");
+			if (otherArgs.length != 3) {
+				usage("Exactly three command line arguments required.");
+			}
 		}
 		
 		String inputDexFilename = otherArgs[0];
-		int partitionNumber = Integer.parseInt(otherArgs[1]);
-		String partitionFilename = otherArgs[2];
 		
 		if ( !(new File(inputDexFilename).exists())) {
 			usage("File " + inputDexFilename + " not found.");
 		}
 
-		if (new File(partitionFilename).exists()) {
-			Out.err("WARNING: File " + partitionFilename + " exists and will be overwritten.");
-		}
-
 		Dex evidence = new Dex(inputDexFilename);		
 		
 		XPath xpath = XPath.newInstance("/DEXroot/PartitionTable");
-		Element e = (Element)xpath.selectSingleNode(evidence.getRoot());
-		String partitionTableCommandLine = e.getChildText("CommandLine");
-		if (!partitionTableCommandLine.contains("mmls ")) {
+		Element partitionTable = (Element)xpath.selectSingleNode(evidence.getRoot());
+		String partitionTableCommandLine = partitionTable.getChildText("CommandLine");
+		// mmls itself, or tsk.Mmls reading the table in its JVM
+		if (!partitionTableCommandLine.contains("mmls ") && !partitionTableCommandLine.contains(Mmls.class.getName() + " ")) {
 			usage("Use only input DEXFILEs generated by a wrapped mmls.");
 		}
+		int sectorSize = Integer.parseInt(partitionTable.getChildTextTrim("SectorSize"));
 		
 		xpath = XPath.newInstance("/DEXroot/DiskImage");
-		e = (Element)xpath.selectSingleNode(evidence.getRoot());
+		Element e = (Element)xpath.selectSingleNode(evidence.getRoot());
 		String imageFileName = e.getChildText("Filename");
 
-		String commandLine = COMMAND + " " + imageFileName + " " + partitionNumber;
+		if (all || inJvm) {
+			if ( !(new File(imageFileName).exists())) {
+				usage("File " + imageFileName + " not found.");
+			}
+			if (all) {
+				extractAll(evidence, imageFileName, partitionTable, sectorSize, otherArgs[1],
+						ToolRunner.commandLine(Mmcat.class, args));
+			}
+			else {
+				int volumeCount = partitionTable.getChildren("Volume").size();
+				int[] partitionNumbers = new int[otherArgs.length / 2];
+				File[] files = new File[partitionNumbers.length];
+				for (int i = 0; i < partitionNumbers.length; i++) {
+					partitionNumbers[i] = Integer.parseInt(otherArgs[2 * i + 1]);
+					if (partitionNumbers[i] < 0 || partitionNumbers[i] >= volumeCount) {
+						usage("No partition " + partitionNumbers[i] + " in DEXFILE.");
+					}
+					files[i] = new File(otherArgs[2 * i + 2]);
+					if (files[i].exists()) {
+						Out.err("WARNING: File " + files[i] + " exists and will be overwritten.");
+					}
+				}
+				extractNative(evidence, imageFileName, partitionTable, sectorSize, partitionNumbers, files, threads,
+						ToolRunner.commandLine(Mmcat.class, args));
+			}
+			dump(evidence, (String)parser.getOptionValue(xml));
+			return;
+		}
+		
+		int partitionNumber = Integer.parseInt(otherArgs[1]);
+		String partitionFilename = otherArgs[2];
+
+		if (new File(partitionFilename).exists()) {
+			Out.err("WARNING: File " + partitionFilename + " exists and will be overwritten.");
+		}
+
+		ToolRunner mmcat = new ToolRunner(COMMAND, imageFileName, Integer.toString(partitionNumber));
+		String commandLine = mmcat.getCommandLine();
 
 		if ( !(new File(imageFileName).exists())) {
 			usage("File " + imageFileName + " not found.");
@@ -98,40 +168,201 @@ public class Mmcat {
 				
 		VolumeFileEntry volumeFileEntry = new VolumeFileEntry(evidence.getRoot());
 		
-		Process p = Runtime.getRuntime().exec(COMMAND + " -V");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+		String version = ToolVersions.get(COMMAND, "-V");
 		if (!version.contains("Sleuth Kit ver 3.0")) {
 			Out.err("WARNING: version 3.0.x of Sleuth Kit expected.");
 		}
 		
 		volumeFileEntry.addInformationSource(version, commandLine);
 		
-		p = Runtime.getRuntime().exec(commandLine);
-		BufferedInputStream in = new BufferedInputStream(p.getInputStream());
-		FileOutputStream out = new FileOutputStream(new File(partitionFilename));
-		byte[] buf = new byte[1024];
-		int len;
-		while ((len = in.read(buf)) > 0) {
-			out.write(buf, 0, len);
-		}
-		in.close();
-		out.close();
+		List l = partitionTable.getChildren("Volume");
 		
-		String partitionMD5 = Dex.computeMD5(partitionFilename);
+		Element volumeElement = (Element)l.get(partitionNumber); // Brian Carrier also counts from 0
 		
-		xpath = XPath.newInstance("/DEXroot/PartitionTable");
-		e = (Element)xpath.selectSingleNode(evidence.getRoot());
-		List l = e.getChildren("Volume");
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		mmcat.start();
+		mmcat.copyTo(new File(partitionFilename), getVolumeSize(volumeElement, sectorSize), md5);
+		mmcat.finish();
+		mmcat.recordIn(volumeFileEntry);
 		
-		Element volumeElement = (Element)l.get(partitionNumber); // Brian Carrier also counts from 0
+		String partitionMD5 = Dex.hexEncode(md5.digest());
 				
 		volumeFileEntry.addVolumeFile(volumeElement, partitionNumber, partitionFilename, partitionMD5);
 		
-		String xmlOutputFilename = (String)parser.getOptionValue(xml);
+		dump(evidence, (String)parser.getOptionValue(xml));
+	}
+
+	private static void dump(Dex evidence, String xmlOutputFilename) throws IOException {
 		if (xmlOutputFilename == null) {
 			evidence.dump(System.out);
 		} else {
 			evidence.dump(new BufferedWriter(new FileWriter(xmlOutputFilename)));
 		}		
 	}
+
+	/*
+	 * Extract every Volume of the partition table to prefix-n in one pass over
+	 * the image, then add all of the VolumeFile entries together. No mmcat
+	 * runs, so each entry records the given command line of this wrapper.
+	 */
+	private static void extractAll(Dex evidence, String imageFilename, Element partitionTable, int sectorSize, String prefix,
+			String commandLine) throws Exception {
+		List<?> volumeElements = partitionTable.getChildren("Volume");
+		int n = volumeElements.size();
+		long[] starts = new long[n];
+		long[] ends = new long[n];
+		File[] files = new File[n];
+		MessageDigest[] digests = new MessageDigest[n];
+		for (int i = 0; i < n; i++) {
+			Element v = (Element)volumeElements.get(i);
+			starts[i] = Long.parseLong(v.getChildTextTrim("StartSector")) * sectorSize;
+			ends[i] = (Long.parseLong(v.getChildTextTrim("EndSector")) + 1) * sectorSize;
+			files[i] = new File(prefix + "-" + i);
+			if (files[i].exists()) {
+				Out.err("WARNING: File " + files[i] + " exists and will be overwritten.");
+			}
+			digests[i] = MessageDigest.getInstance("MD5");
+		}
+
+		carve(imageFilename, starts, ends, files, digests);
+
+		for (int i = 0; i < n; i++) {
+			VolumeFileEntry volumeFileEntry = new VolumeFileEntry(evidence.getRoot());
+			volumeFileEntry.addInformationSource(IN_JVM_VERSION, commandLine);
+			volumeFileEntry.addVolumeFile((Element)volumeElements.get(i), i, files[i].getPath(),
+					Dex.hexEncode(digests[i].digest()));
+		}
+	}
+
+	/*
+	 * Copy each of the given partitions to its file with positional reads on
+	 * one shared channel, several at a time, then add their VolumeFile
+	 * entries in order. As with extractAll, each entry records the given
+	 * command line of this wrapper.
+	 */
+	private static void extractNative(Dex evidence, String imageFilename, Element partitionTable, int sectorSize,
+			int[] partitionNumbers, File[] files, int threads, String commandLine) throws Exception {
+		List<?> volumeElements = partitionTable.getChildren("Volume");
+		FileInputStream image = new FileInputStream(imageFilename);
+		List<String> md5s;
+		try {
+			final FileChannel in = image.getChannel();
+			List<Callable<String>> tasks = new ArrayList<Callable<String>>(partitionNumbers.length);
+			for (int i = 0; i < partitionNumbers.length; i++) {
+				Element v = (Element)volumeElements.get(partitionNumbers[i]);
+				final long start = Long.parseLong(v.getChildTextTrim("StartSector")) * sectorSize;
+				final long length = getVolumeSize(v, sectorSize);
+				final File file = files[i];
+				tasks.add(new Callable<String>() {
+					public String call() throws Exception {
+						Transfer transfer = new Transfer(MessageDigest.getInstance("MD5"));
+						transfer.copy(in, start, length, file);
+						return transfer.getDigest();
+					}
+				});
+			}
+			md5s = Orchestrator.run(Orchestrator.IO, threads, tasks);
+		} finally {
+			image.close();
+		}
+
+		for (int i = 0; i < partitionNumbers.length; i++) {
+			VolumeFileEntry volumeFileEntry = new VolumeFileEntry(evidence.getRoot());
+			volumeFileEntry.addInformationSource(IN_JVM_VERSION, commandLine);
+			volumeFileEntry.addVolumeFile((Element)volumeElements.get(partitionNumbers[i]), partitionNumbers[i],
+					files[i].getPath(), md5s.get(i));
+		}
+	}
+
+	/*
+	 * Read the byte ranges [starts[i], ends[i]) of the image in a single
+	 * sequential pass, writing each to its file and digest. Ranges may
+	 * overlap (e.g., an extended partition and the logical partitions in it);
+	 * stretches that no range covers are skipped. A range that runs past the
+	 * end of the image is cut short.
+	 */
+	static void carve(String imageFilename, long[] starts, long[] ends, File[] files, MessageDigest[] digests) throws IOException {
+		long begin = System.nanoTime();
+		int n = starts.length;
+		FileInputStream image = new FileInputStream(imageFilename);
+		RandomAccessFile[] outs = new RandomAccessFile[n];
+		long position = Long.MAX_VALUE;
+		long last = 0;
+		long bytesRead = 0;
+		try {
+			for (int i = 0; i < n; i++) {
+				outs[i] = new RandomAccessFile(files[i], "rw");
+				outs[i].setLength(0);
+				outs[i].setLength(Math.max(0, ends[i] - starts[i]));
+				if (ends[i] > starts[i]) {
+					position = Math.min(position, starts[i]);
+					last = Math.max(last, ends[i]);
+				}
+			}
+			FileChannel in = image.getChannel();
+			ByteBuffer buf = ByteBuffer.allocateDirect(Transfer.BUFFER_SIZE);
+			while (position < last) {
+				buf.clear();
+				if (last - position < buf.capacity()) {
+					buf.limit((int)(last - position));
+				}
+				int count = in.read(buf, position);
+				if (count <= 0) {
+					break;
+				}
+				bytesRead += count;
+				buf.flip();
+				long next = Long.MAX_VALUE;
+				for (int i = 0; i < n; i++) {
+					long from = Math.max(starts[i], position);
+					long to = Math.min(ends[i], position + count);
+					if (from < to) {
+						ByteBuffer slice = buf.duplicate();
+						slice.limit((int)(to - position));
+						slice.position((int)(from - position));
+						digests[i].update(slice.duplicate());
+						FileChannel out = outs[i].getChannel();
+						for (long p = from - starts[i]; slice.hasRemaining();) {
+							p += out.write(slice, p);
+						}
+					}
+					if (ends[i] > position + count) {
+						next = Math.min(next, Math.max(starts[i], position + count));
+					}
+				}
+				position = next;
+			}
+			// trim the ranges that ran past the end of the image
+			long end = Math.min(position, last);
+			for (int i = 0; i < n; i++) {
+				if (ends[i] > end) {
+					outs[i].setLength(Math.max(0, end - starts[i]));
+				}
+			}
+		} finally {
+			image.close();
+			for (RandomAccessFile out : outs) {
+				if (out != null) {
+					out.close();
+				}
+			}
+		}
+		long nanos = Math.max(1, System.nanoTime() - begin);
+		Out.debug("Mmcat: " + n + " partitions, " + bytesRead + " bytes read in " + nanos / 1000000 + " ms ("
+				+ (bytesRead * 1000 / nanos) + " MB/s)");
+	}
+
+	/*
+	 * The size in bytes of a Volume from the partition table, used to
+	 * preallocate the output; -1 if unknown.
+	 */
+	private static long getVolumeSize(Element volumeElement, int sectorSize) {
+		try {
+			long start = Long.parseLong(volumeElement.getChildTextTrim("StartSector"));
+			long end = Long.parseLong(volumeElement.getChildTextTrim("EndSector"));
+			return (end - start + 1) * sectorSize;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 }
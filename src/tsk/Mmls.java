@@ -1,19 +1,20 @@
 package tsk;
 import jargs.gnu.CmdLineParser;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.EmptyStackException;
 import java.util.Scanner;
 
 import dex.Dex;
 import dex.Out;
+import dex.ToolRunner;
+import dex.ToolVersions;
 import disk.DiskImageEntry;
+import partitions.NativePartitionTable;
 import partitions.PartitionTableEntry;
 
 public class Mmls {
@@ -21,18 +22,20 @@ public class Mmls {
 
 	private static void usage (String err) {
 		if (err!=null) Out.err("\nERROR: "+err);
-		Out.err("\nUsage:\ndex_mmls   [--xmloutfile filename] [--help] imagefile");
+		Out.err("\nUsage:\ndex_mmls   [--xmloutfile filename] [--native] [--help] imagefile");
 		Out.err("\t--xmloutfile: optionally dump xml to file.");
+		Out.err("\t--native: read the DOS or GPT partition table in this JVM instead of running mmls.");
 		Out.err("\t--help:  this help file.");
 		System.err.println("\nDex wrapper for MMLS\nauthor: Brian Neil Levine (c) 2007"); 
 
-		System.exit(-1);
+		Out.exit(-1);
 	}
 
 	public static void main(String[] args) throws Exception {
 		CmdLineParser parser = new CmdLineParser();
 		CmdLineParser.Option help = parser.addBooleanOption('h', "help");
 		CmdLineParser.Option xml = parser.addStringOption("xml-file");
+		CmdLineParser.Option nativeOption = parser.addBooleanOption('n', "native");
 
 		try {
 			parser.parse(args);
@@ -46,31 +49,54 @@ public class Mmls {
 			usage(null);
 		}
 		String[] otherArgs = parser.getRemainingArgs();
-		String imageFilename = otherArgs[0];		
-		if (imageFilename==null) {
+		if (otherArgs.length == 0) {
 			usage("Disk image filename not provided on command line.");
 		}
+		String imageFilename = otherArgs[0];
 		check_filename(imageFilename);
 
 		Dex evidence = new Dex();
 		String imageMD5sum = Dex.computeMD5(imageFilename);
 		DiskImageEntry diskImageEntry = new DiskImageEntry(evidence.getRoot(), imageFilename, imageMD5sum);
 		
-		Process p = Runtime.getRuntime().exec(COMMAND + " -V");
-		String version = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine().trim();
+		if ((Boolean)parser.getOptionValue(nativeOption, Boolean.FALSE)) {
+			NativePartitionTable table = null;
+			try {
+				table = NativePartitionTable.open(imageFilename);
+			} catch (IOException e) {
+				usage(e.getMessage());
+			}
+			PartitionTableEntry partitionTableEntry = new PartitionTableEntry(evidence.getRoot());		
+			partitionTableEntry.addInformationSource(table.getVersion(), ToolRunner.commandLine(Mmls.class, args));
+			partitionTableEntry.setParentPointer(diskImageEntry.getXPath());
+			table.addVolumesTo(partitionTableEntry);
+			dump(evidence, (String)parser.getOptionValue(xml));
+			return;
+		}
+		
+		String version = ToolVersions.get(COMMAND, "-V");
 		if (!(version.startsWith("The Sleuth Kit") && version.contains(" 3.0"))) {
 			Out.err("WARNING: version 3.0.x of The Sleuth Kit expected.");
 		}
 		
-		String commandLine = COMMAND + " " + imageFilename;
+		ToolRunner mmls = new ToolRunner(COMMAND, imageFilename);
+		String commandLine = mmls.getCommandLine();
 		
 		PartitionTableEntry partitionTableEntry = new PartitionTableEntry(evidence.getRoot());		
 		partitionTableEntry.addInformationSource(version, commandLine);
 		partitionTableEntry.setParentPointer(diskImageEntry.getXPath());
-		exec_command(commandLine);
+		mmls.setReplay(version, imageFilename, imageMD5sum);
+		mmls.start();
+		exec_output = new Scanner(mmls.getInputStream());
+		exec_output.useDelimiter("\n");
 		parse_exec_output(partitionTableEntry);
+		mmls.finish();
+		mmls.recordIn(partitionTableEntry);
 		
-		String xmlOutputFilename = (String)parser.getOptionValue(xml);
+		dump(evidence, (String)parser.getOptionValue(xml));
+	}
+
+	private static void dump(Dex evidence, String xmlOutputFilename) throws IOException {
 		if (xmlOutputFilename == null) {
 			evidence.dump(System.out);
 		} else {
@@ -91,26 +117,14 @@ public class Mmls {
 
 
 	static Scanner exec_output;
-	private static void exec_command(String command) {
-		Process p = null;
-		try {
-			p = Runtime.getRuntime().exec(command);
-		} 
-		catch (IOException ex) {
-			ex.printStackTrace();
-		}
-		exec_output = new Scanner(p.getInputStream());
-		exec_output.useDelimiter("\n");
-
-	}
 
 	private static int parse_exec_output(PartitionTableEntry partitionTableEntry) throws IOException {
 		if (partitionTableEntry == null) {
-			System.exit(-1);
+			Out.exit(-1);
 		}
 		if (exec_output.findInLine("DOS Partition Table")==null) {
 			System.err.println("Error: Not a DOS partition Table.");
-			System.exit(-1);
+			Out.exit(-1);
 		}
 		if (exec_output.findInLine("Offset Sector: (\\d+)")!=null) {
 			partitionTableEntry.setOffset(Integer.parseInt(exec_output.match().group(1)));
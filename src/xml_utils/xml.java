@@ -2,6 +2,7 @@ package xml_utils;
 
 import java.util.List;
 
+import org.jdom.Attribute;
 import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.xpath.XPath;
@@ -26,6 +27,30 @@ public class xml{
 		return Integer.toString(max);
 	}
 
+	/**
+	 * A compact canonical form of an element (name, attributes, trimmed text
+	 * and children), suitable as a map key. Much cheaper than running the
+	 * element through an XMLOutputter.
+	 */
+	public static String canonicalString (Element el) {
+		StringBuilder sb = new StringBuilder();
+		appendCanonical(el, sb);
+		return sb.toString();
+	}
+
+	private static void appendCanonical (Element el, StringBuilder sb) {
+		sb.append('<').append(el.getQualifiedName());
+		for (Object a : el.getAttributes()) {
+			Attribute attr = (Attribute) a;
+			sb.append(' ').append(attr.getQualifiedName()).append("=\"").append(attr.getValue()).append('"');
+		}
+		sb.append('>').append(el.getTextTrim());
+		for (Object c : el.getChildren()) {
+			appendCanonical((Element) c, sb);
+		}
+		sb.append("</>");
+	}
+
 	public static String getPath (Element el) {
 		if (el==null) {
 			return "";